@@ -0,0 +1,37 @@
+package ru.riverx.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.riverx.Ast;
+import ru.riverx.CodeGenerator;
+import ru.riverx.CompilationEngine;
+import ru.riverx.JackTokenizer;
+import ru.riverx.VMCodeBuffer;
+
+import java.util.List;
+
+/**
+ * Writing VM code from a tree parsed once per trial: the code generator, VMWriter and the in-memory output.
+ */
+public class CodeGeneratorBenchmark extends PhaseBenchmark {
+    @State(Scope.Benchmark)
+    public static class ParsedCorpus {
+        Ast.ClassDec tree;
+
+        @Setup(Level.Trial)
+        public void parse(Corpus corpus) {
+            tree = new CompilationEngine(new JackTokenizer(corpus.source)).getTree();
+        }
+    }
+
+    @Benchmark
+    public List<String> generate(Corpus corpus, ParsedCorpus parsed, PhaseCounters counters) {
+        VMCodeBuffer output = new VMCodeBuffer();
+        new CodeGenerator(output).generate(parsed.tree);
+        counters.count(corpus);
+        return output.getLines();
+    }
+}
@@ -0,0 +1,107 @@
+package ru.riverx.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.riverx.JackTokenizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Source of one benchmark run: the sample Main.jack, a generated class with the given number of statements,
+ * or a generated class of the given number of small functions which stress the parsing of returns and calls.
+ */
+@State(Scope.Benchmark)
+public class Corpus {
+    @Param({"Main", "synthetic-1000", "synthetic-10000", "synthetic-100000", "returns-20000"})
+    public String name;
+
+    String source;
+    int lines;
+    int tokens;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        if (name.startsWith("synthetic-")) {
+            source = synthetic(Integer.parseInt(name.substring("synthetic-".length())));
+        } else if (name.startsWith("returns-")) {
+            source = returns(Integer.parseInt(name.substring("returns-".length())));
+        } else {
+            source = resource(name + ".jack");
+        }
+        lines = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') lines++;
+        }
+        JackTokenizer tokenizer = new JackTokenizer(source);
+        tokens = 0;
+        while (tokenizer.hasNextToken()) {
+            tokenizer.getNextToken();
+            tokens++;
+        }
+    }
+
+    double kilobytes() {
+        return source.length() / 1024.0;
+    }
+
+    private static String resource(String name) throws IOException {
+        try (InputStream in = Corpus.class.getResourceAsStream("/" + name)) {
+            if (in == null) throw new IOException("No corpus " + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A class of methods with 50 statements each, mixing lets, branches, loops, calls, arrays, strings and comments.
+     */
+    static String synthetic(int statements) {
+        StringBuilder sb = new StringBuilder("/** Generated benchmark corpus. */\nclass Synthetic {\n");
+        sb.append("    field int a, b;\n    static int s;\n\n");
+        for (int start = 0; start < statements; start += 50) {
+            sb.append("    method int f").append(start / 50).append("(int x, Array arr) {\n");
+            sb.append("        var int i, j, k;\n        var String text;\n");
+            for (int i = start; i < Math.min(statements, start + 50); i++) {
+                switch (i % 7) {
+                    case 0: sb.append("        let i = i + ").append(i % 100).append("; // counter\n"); break;
+                    case 1: sb.append("        if (i > j) { let j = j - 1; } else { let k = k + 2; }\n"); break;
+                    case 2: sb.append("        while (k < 10) { let k = k + (x * 2); }\n"); break;
+                    case 3: sb.append("        do Output.printInt(i * a);\n"); break;
+                    case 4: sb.append("        /* block */ let arr[i] = arr[j] + Math.max(b, s);\n"); break;
+                    case 5: sb.append("        let text = \"value \";\n"); break;
+                    default: sb.append("        if (~(i = 3) & (j < k)) { let a = -a; }\n");
+                }
+            }
+            sb.append("        return i;\n    }\n\n");
+        }
+        return sb.append("}\n").toString();
+    }
+
+    /**
+     * A class of functions with two empty returns and three calls each, with an empty, a nested and
+     * a multi-argument list. After every 'return' and '(' the parser decides whether a value or a list follows.
+     */
+    static String returns(int functions) {
+        StringBuilder sb = new StringBuilder("/** Generated benchmark corpus. */\nclass Returns {\n");
+        for (int i = 0; i < functions; i++) {
+            sb.append("    function void f").append(i).append("(int x) {\n");
+            sb.append("        do Output.println();\n");
+            sb.append("        if (x > ").append(i % 100).append(") { return; }\n");
+            sb.append("        do Math.max(Math.min(x, 1), Math.abs(-x));\n");
+            sb.append("        do Output.printInt(x + 1, x * 2, ").append(i % 10).append(");\n");
+            sb.append("        return;\n    }\n\n");
+        }
+        return sb.append("}\n").toString();
+    }
+}
@@ -0,0 +1,19 @@
+package ru.riverx.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import ru.riverx.Ast;
+import ru.riverx.CompilationEngine;
+import ru.riverx.JackTokenizer;
+
+/**
+ * Building the syntax tree. The tokenizer is lazy and runs inside the parser, so the parse time alone is
+ * this result minus {@link TokenizerBenchmark}.
+ */
+public class ParserBenchmark extends PhaseBenchmark {
+    @Benchmark
+    public Ast.ClassDec parse(Corpus corpus, PhaseCounters counters) {
+        Ast.ClassDec tree = new CompilationEngine(new JackTokenizer(corpus.source)).getTree();
+        counters.count(corpus);
+        return tree;
+    }
+}
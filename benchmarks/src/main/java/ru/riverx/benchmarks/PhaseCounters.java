@@ -0,0 +1,31 @@
+package ru.riverx.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results, reported by JMH as rates next to the ops/s of each phase: tokens/s, lines/s and KB/s of source.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class PhaseCounters {
+    public long tokens;
+    public long lines;
+    public double kilobytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        tokens = 0;
+        lines = 0;
+        kilobytes = 0;
+    }
+
+    void count(Corpus corpus) {
+        tokens += corpus.tokens;
+        lines += corpus.lines;
+        kilobytes += corpus.kilobytes();
+    }
+}
@@ -0,0 +1,19 @@
+package ru.riverx.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.riverx.JackTokenizer;
+
+/**
+ * Tokenizing only: every token of the corpus is read from a fresh tokenizer.
+ */
+public class TokenizerBenchmark extends PhaseBenchmark {
+    @Benchmark
+    public void tokenize(Corpus corpus, PhaseCounters counters, Blackhole blackhole) {
+        JackTokenizer tokenizer = new JackTokenizer(corpus.source);
+        while (tokenizer.hasNextToken()) {
+            blackhole.consume(tokenizer.getNextToken());
+        }
+        counters.count(corpus);
+    }
+}
@@ -1,5 +1,7 @@
 package ru.riverx;
 
+import java.util.Locale;
+
 public enum ArithmeticCommand {
     ADD,
     SUB,
@@ -11,5 +13,16 @@ public enum ArithmeticCommand {
     OR,
     NOT,
     MULTIPLY,
-    DIVIDE
+    DIVIDE;
+
+    private final String vmName;
+
+    ArithmeticCommand() {
+        this.vmName = name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return command as written in VM code, multiply and divide have no VM command and become OS calls
+     */
+    public String getVmName() { return vmName; }
 }
@@ -0,0 +1,223 @@
+package ru.riverx;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed syntax tree of one Jack class, built once by {@link CompilationEngine} and walked by
+ * separate passes ({@link XmlPrinter}, {@link CodeGenerator}). Nodes are immutable.
+ */
+public final class Ast {
+    private Ast() {}
+
+    public static final class ClassDec {
+        public final String name;
+        public final List<VarDec> classVarDecs;
+        public final List<SubroutineDec> subroutines;
+
+        public ClassDec(String name, List<VarDec> classVarDecs, List<SubroutineDec> subroutines) {
+            this.name = name;
+            this.classVarDecs = Collections.unmodifiableList(classVarDecs);
+            this.subroutines = Collections.unmodifiableList(subroutines);
+        }
+    }
+
+    /**
+     * Declaration of one or more variables of the same kind and type: static, field, or var.
+     */
+    public static final class VarDec {
+        public final String kind;
+        public final String type;
+        public final List<String> names;
+
+        public VarDec(String kind, String type, List<String> names) {
+            this.kind = kind;
+            this.type = type;
+            this.names = Collections.unmodifiableList(names);
+        }
+    }
+
+    public static final class Parameter {
+        public final String type;
+        public final String name;
+
+        public Parameter(String type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+    }
+
+    public static final class SubroutineDec {
+        public final String kind; // constructor, function or method
+        public final String returnType;
+        public final String name;
+        public final List<Parameter> parameters;
+        public final List<VarDec> varDecs;
+        public final List<Statement> statements;
+
+        public SubroutineDec(String kind, String returnType, String name, List<Parameter> parameters,
+                             List<VarDec> varDecs, List<Statement> statements) {
+            this.kind = kind;
+            this.returnType = returnType;
+            this.name = name;
+            this.parameters = Collections.unmodifiableList(parameters);
+            this.varDecs = Collections.unmodifiableList(varDecs);
+            this.statements = Collections.unmodifiableList(statements);
+        }
+    }
+
+    public abstract static class Statement {
+        private Statement() {}
+    }
+
+    public static final class LetStatement extends Statement {
+        public final String name;
+        public final Expression index; // Null unless an array element is assigned.
+        public final Expression value;
+
+        public LetStatement(String name, Expression index, Expression value) {
+            this.name = name;
+            this.index = index;
+            this.value = value;
+        }
+    }
+
+    public static final class IfStatement extends Statement {
+        public final Expression condition;
+        public final List<Statement> thenStatements;
+        public final List<Statement> elseStatements; // Null without else.
+
+        public IfStatement(Expression condition, List<Statement> thenStatements, List<Statement> elseStatements) {
+            this.condition = condition;
+            this.thenStatements = Collections.unmodifiableList(thenStatements);
+            this.elseStatements = elseStatements != null ? Collections.unmodifiableList(elseStatements) : null;
+        }
+    }
+
+    public static final class WhileStatement extends Statement {
+        public final Expression condition;
+        public final List<Statement> statements;
+
+        public WhileStatement(Expression condition, List<Statement> statements) {
+            this.condition = condition;
+            this.statements = Collections.unmodifiableList(statements);
+        }
+    }
+
+    public static final class DoStatement extends Statement {
+        public final SubroutineCall call;
+
+        public DoStatement(SubroutineCall call) {
+            this.call = call;
+        }
+    }
+
+    public static final class ReturnStatement extends Statement {
+        public final Expression value; // Null for an empty return.
+
+        public ReturnStatement(Expression value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Every expression but {@link BinaryExpression} is a term.
+     */
+    public abstract static class Expression {
+        private Expression() {}
+    }
+
+    public static final class IntegerConstant extends Expression {
+        public final int value;
+
+        public IntegerConstant(int value) {
+            this.value = value;
+        }
+    }
+
+    public static final class StringConstant extends Expression {
+        public final String value;
+
+        public StringConstant(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * true, false, null or this.
+     */
+    public static final class KeywordConstant extends Expression {
+        public final String keyword;
+
+        public KeywordConstant(String keyword) {
+            this.keyword = keyword;
+        }
+    }
+
+    public static final class VarRef extends Expression {
+        public final String name;
+
+        public VarRef(String name) {
+            this.name = name;
+        }
+    }
+
+    public static final class ArrayRef extends Expression {
+        public final String name;
+        public final Expression index;
+
+        public ArrayRef(String name, Expression index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+
+    /**
+     * name(args), or target.name(args) where the target is a variable or a class name.
+     */
+    public static final class SubroutineCall extends Expression {
+        public final String target; // Null for a call without a dot.
+        public final String name;
+        public final List<Expression> arguments;
+
+        public SubroutineCall(String target, String name, List<Expression> arguments) {
+            this.target = target;
+            this.name = name;
+            this.arguments = Collections.unmodifiableList(arguments);
+        }
+    }
+
+    public static final class ParenthesizedExpression extends Expression {
+        public final Expression expression;
+
+        public ParenthesizedExpression(Expression expression) {
+            this.expression = expression;
+        }
+    }
+
+    public static final class UnaryExpression extends Expression {
+        public final char op; // '-' or '~'
+        public final Expression term;
+
+        public UnaryExpression(char op, Expression term) {
+            this.op = op;
+            this.term = term;
+        }
+    }
+
+    /**
+     * 'term op expression'. Jack has no operator precedence and this compiler groups operators
+     * to the right, so a - b - c is a - (b - c).
+     */
+    public static final class BinaryExpression extends Expression {
+        public final Expression left; // Always a term.
+        public final char op;
+        public final Expression right;
+
+        public BinaryExpression(Expression left, char op, Expression right) {
+            this.left = left;
+            this.op = op;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package ru.riverx;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers which sources were compiled into up-to-date outputs. The index is a small text file next to
+ * the outputs, one "key file key" line per source, where the key combines the content hash, the compiler
+ * version, the options that change the output and the declarations of the classes the source calls.
+ * It also keeps the {@link ProgramIndex} entry of every source by its content hash, as "class file hash entry"
+ * lines, so the first pass of a build only parses the sources which changed.
+ */
+public class BuildCache {
+    static final String INDEX_NAME = ".jackcache";
+    private final Path indexFile;
+    private final String suffix;
+    private final Map<String, String> entries;
+    private final Map<String, String[]> classEntries; // File -> content hash and index entry.
+    private final AtomicInteger hits;
+    private final AtomicInteger misses;
+
+    private BuildCache(Path indexFile, String suffix) {
+        this.indexFile = indexFile;
+        this.suffix = suffix;
+        this.entries = new ConcurrentHashMap<>();
+        this.classEntries = new ConcurrentHashMap<>();
+        this.hits = new AtomicInteger();
+        this.misses = new AtomicInteger();
+    }
+
+    /**
+     * Loads the index from the folder. A missing or unreadable index just means that everything is a miss.
+     */
+    public static BuildCache open(Path folder, CompilerOptions options) {
+        BuildCache cache = new BuildCache(folder.resolve(INDEX_NAME), ":" + JackAnalyzer.VERSION + ":" + options.fingerprint());
+        if (Files.isRegularFile(cache.indexFile)) {
+            try {
+                for (String line : Files.readAllLines(cache.indexFile, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split(" ");
+                    if (fields.length == 3 && fields[0].equals("key")) {
+                        cache.entries.put(fields[1], fields[2]);
+                    } else if (fields.length == 4 && fields[0].equals("class")) {
+                        cache.classEntries.put(fields[1], new String[] {fields[2], fields[3]});
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Warning: ignoring unreadable build cache " + cache.indexFile + ": " + e);
+                cache.entries.clear();
+                cache.classEntries.clear();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return a cache which is never saved, it keeps the index entries between the builds of --watch
+     */
+    public static BuildCache inMemory(CompilerOptions options) {
+        return new BuildCache(null, ":" + JackAnalyzer.VERSION + ":" + options.fingerprint());
+    }
+
+    /**
+     * @return hash of the source content, for {@link #indexEntryOf} and {@link #updateIndexEntry}
+     */
+    public static String hashOf(Path source) throws IOException {
+        return hash(Files.readAllBytes(source));
+    }
+
+    /**
+     * @return the {@link ProgramIndex#entryOf} entry recorded for the same content of the source, or null
+     */
+    public String indexEntryOf(Path source, String hash) {
+        String[] entry = classEntries.get(nameOf(source));
+        return entry != null && entry[0].equals(hash) ? entry[1] : null;
+    }
+
+    public void updateIndexEntry(Path source, String hash, String entry) {
+        classEntries.put(nameOf(source), new String[] {hash, entry});
+    }
+
+    /**
+     * @return key of the current source content, used for {@link #isUpToDate} and {@link #update}
+     */
+    public String keyOf(Path source) throws IOException {
+        return keyOf(source, "");
+    }
+
+    /**
+     * @param dependencies the declarations of the other classes the source relies on, see
+     *                     {@link ProgramIndex#dependencyKey}; the key changes with them
+     */
+    public String keyOf(Path source, String dependencies) throws IOException {
+        String key = hash(Files.readAllBytes(source)) + suffix;
+        return dependencies.isEmpty() ? key : key + ":" + hash(dependencies.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Counts a hit if the source has the same key as on the last compilation and all of its outputs still exist.
+     */
+    public boolean isUpToDate(Path source, String key, List<Path> outputs) {
+        boolean upToDate = key.equals(entries.get(nameOf(source)));
+        for (int i = 0; upToDate && i < outputs.size(); i++) {
+            upToDate = Files.isRegularFile(outputs.get(i));
+        }
+        if (upToDate) hits.incrementAndGet(); else misses.incrementAndGet();
+        return upToDate;
+    }
+
+    public void update(Path source, String key) {
+        entries.put(nameOf(source), key);
+    }
+
+    /**
+     * Forgets the source, so its outputs are compiled again by the next cached build.
+     */
+    public void invalidate(Path source) {
+        entries.remove(nameOf(source));
+    }
+
+    public int getHits() { return hits.get(); }
+    public int getMisses() { return misses.get(); }
+
+    /**
+     * Writes the index to a temporary file first, so an interrupted build never leaves a half-written index.
+     */
+    public void save() {
+        if (indexFile == null) return;
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(entries).entrySet()) {
+            lines.add("key " + entry.getKey() + " " + entry.getValue());
+        }
+        for (Map.Entry<String, String[]> entry : new TreeMap<>(classEntries).entrySet()) {
+            lines.add("class " + entry.getKey() + " " + entry.getValue()[0] + " " + entry.getValue()[1]);
+        }
+        try {
+            Path tmp = indexFile.resolveSibling(INDEX_NAME + ".tmp");
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Warning: could not save build cache " + indexFile + ": " + e);
+        }
+    }
+
+    private static String nameOf(Path source) {
+        return source.getFileName().toString();
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package ru.riverx;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Time and allocated bytes of every compilation phase per file, for --stats and --stats-json.
+ * Allocation is read from the JVM's per-thread counter, so files compiled in parallel are measured apart.
+ */
+public class BuildStats {
+    public enum Phase {
+        READ, TOKENIZE, PARSE, CODEGEN, WRITE;
+
+        public String getName() { return name().toLowerCase(Locale.ROOT); }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private final List<FileStats> files = Collections.synchronizedList(new ArrayList<>());
+    private int indexedClasses;
+    private long indexNanos;
+
+    public FileStats startFile(String filename) {
+        FileStats file = new FileStats(filename);
+        files.add(file);
+        return file;
+    }
+
+    /**
+     * Records the first pass of a folder build, which parses every file to index the program.
+     */
+    public void setIndex(int classes, long nanos) {
+        this.indexedClasses = classes;
+        this.indexNanos = nanos;
+    }
+
+    public boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    public void clear() {
+        files.clear();
+        indexedClasses = 0;
+        indexNanos = 0;
+    }
+
+    private List<FileStats> sortedFiles() {
+        List<FileStats> sorted;
+        synchronized (files) {
+            sorted = new ArrayList<>(files);
+        }
+        sorted.sort((a, b) -> a.filename.compareTo(b.filename));
+        return sorted;
+    }
+
+    /**
+     * Phases are measured back to back: every {@link #lap(Phase)} closes the phase that ran since the previous lap.
+     */
+    public static class FileStats {
+        private final String filename;
+        private final long[] nanos = new long[Phase.values().length];
+        private final long[] bytes = new long[Phase.values().length];
+        private long lapNanos;
+        private long lapBytes;
+        private int tokens;
+        private int vmInstructions;
+
+        private FileStats(String filename) {
+            this.filename = filename;
+            this.lapNanos = System.nanoTime();
+            this.lapBytes = allocatedBytes();
+        }
+
+        public void lap(Phase phase) {
+            long now = System.nanoTime();
+            long allocated = allocatedBytes();
+            nanos[phase.ordinal()] += now - lapNanos;
+            bytes[phase.ordinal()] += allocated - lapBytes;
+            lapNanos = now;
+            lapBytes = allocated;
+        }
+
+        public void setTokens(int tokens) { this.tokens = tokens; }
+        public void setVmInstructions(int vmInstructions) { this.vmInstructions = vmInstructions; }
+
+        private long totalNanos() {
+            long total = 0;
+            for (long n : nanos) total += n;
+            return total;
+        }
+
+        private long totalBytes() {
+            long total = 0;
+            for (long b : bytes) total += b;
+            return total;
+        }
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far or 0 if the JVM does not count them
+     */
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Prints the time of every phase per file, then the totals of every phase with allocation.
+     */
+    public void print() {
+        List<FileStats> sorted = sortedFiles();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-32s %8s %8s", "file (ms)", "tokens", "vm"));
+        for (Phase phase : Phase.values()) sb.append(String.format(Locale.ROOT, " %9s", phase.getName()));
+        sb.append(String.format(Locale.ROOT, " %9s%n", "total"));
+        long[] nanos = new long[Phase.values().length];
+        long[] bytes = new long[Phase.values().length];
+        long tokens = 0;
+        long vmInstructions = 0;
+        for (FileStats file : sorted) {
+            sb.append(String.format(Locale.ROOT, "%-32s %8d %8d", file.filename, file.tokens, file.vmInstructions));
+            for (Phase phase : Phase.values()) {
+                sb.append(String.format(Locale.ROOT, " %9.2f", file.nanos[phase.ordinal()] / 1e6));
+                nanos[phase.ordinal()] += file.nanos[phase.ordinal()];
+                bytes[phase.ordinal()] += file.bytes[phase.ordinal()];
+            }
+            sb.append(String.format(Locale.ROOT, " %9.2f%n", file.totalNanos() / 1e6));
+            tokens += file.tokens;
+            vmInstructions += file.vmInstructions;
+        }
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < nanos.length; i++) {
+            totalNanos += nanos[i];
+            totalBytes += bytes[i];
+        }
+        sb.append(String.format(Locale.ROOT, "%n%-10s %10s %6s %12s%n", "phase", "time ms", "time", "allocated KB"));
+        for (Phase phase : Phase.values()) {
+            int i = phase.ordinal();
+            sb.append(String.format(Locale.ROOT, "%-10s %10.2f %5.1f%% %12.1f%n", phase.getName(), nanos[i] / 1e6,
+                    totalNanos > 0 ? 100.0 * nanos[i] / totalNanos : 0, bytes[i] / 1024.0));
+        }
+        sb.append(String.format(Locale.ROOT, "%-10s %10.2f %5.1f%% %12.1f%n", "total", totalNanos / 1e6, 100.0,
+                totalBytes / 1024.0));
+        sb.append(String.format(Locale.ROOT, "%d file(s), %d tokens, %d VM instructions", sorted.size(), tokens,
+                vmInstructions));
+        if (indexedClasses > 0) {
+            sb.append(String.format(Locale.ROOT, "%nindex pass: %d class(es) in %.2f ms, not part of the phases above",
+                    indexedClasses, indexNanos / 1e6));
+        }
+        System.out.println(sb);
+    }
+
+    public void writeJson(Path path) throws IOException {
+        StringBuilder sb = new StringBuilder("{\n  \"files\": [");
+        List<FileStats> sorted = sortedFiles();
+        for (int f = 0; f < sorted.size(); f++) {
+            FileStats file = sorted.get(f);
+            sb.append(f > 0 ? ",\n" : "\n").append("    {\"file\": ").append(quote(file.filename))
+                    .append(", \"tokens\": ").append(file.tokens)
+                    .append(", \"vmInstructions\": ").append(file.vmInstructions)
+                    .append(", \"totalNanos\": ").append(file.totalNanos())
+                    .append(", \"totalBytes\": ").append(file.totalBytes())
+                    .append(", \"phases\": {");
+            for (Phase phase : Phase.values()) {
+                sb.append(phase.ordinal() > 0 ? ", " : "").append(quote(phase.getName()))
+                        .append(": {\"nanos\": ").append(file.nanos[phase.ordinal()])
+                        .append(", \"bytes\": ").append(file.bytes[phase.ordinal()]).append("}");
+            }
+            sb.append("}}");
+        }
+        sb.append("\n  ],\n  \"index\": {\"classes\": ").append(indexedClasses)
+                .append(", \"nanos\": ").append(indexNanos).append("}\n}\n");
+        Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,594 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Walks an {@link Ast.ClassDec} and writes its VM code, resolving names with a {@link SymbolTable}
+ * and calls with a {@link ProgramIndex}.
+ */
+public class CodeGenerator {
+    private final VMWriter writer;
+    private final SymbolTable symbolTable;
+    private final ProgramIndex index;
+    private ProgramIndex classIndex;
+    private String className;
+    private Ast.SubroutineDec subroutine;
+    private int labelCount;
+    private final StringPool strings;
+    private int stringStatic; // First static variable of the pool.
+    private final boolean fastArrays;
+    private final boolean shortCircuit;
+    private String thatAddress; // What pointer 1 holds within the current statement, null if unknown.
+
+    public CodeGenerator(VMOutput output) {
+        this(output, new ProgramIndex());
+    }
+
+    /**
+     * @param index the other classes of the program, shared between files and only read
+     */
+    public CodeGenerator(VMOutput output, ProgramIndex index) {
+        this(output, index, null);
+    }
+
+    /**
+     * @param strings pool of string literals, see {@link StringPool}; a class pool is filled from the class itself,
+     *                a program pool is shared between files and only read; null builds literals on every use
+     */
+    public CodeGenerator(VMOutput output, ProgramIndex index, StringPool strings) {
+        this(output, index, strings, false);
+    }
+
+    /**
+     * @param fastArrays fold constant indices into that N, reuse pointer 1 for the same element within
+     *                   a statement and store array elements without temp 0 where the order can't be seen
+     */
+    public CodeGenerator(VMOutput output, ProgramIndex index, StringPool strings, boolean fastArrays) {
+        this(output, index, strings, fastArrays, false);
+    }
+
+    /**
+     * @param shortCircuit compile &amp; and | of boolean operands in if and while conditions as jumps, so the right
+     *                     operand is only evaluated when it decides the result
+     */
+    public CodeGenerator(VMOutput output, ProgramIndex index, StringPool strings, boolean fastArrays,
+                         boolean shortCircuit) {
+        this.writer = new VMWriter(output);
+        this.symbolTable = new SymbolTable();
+        this.index = index;
+        this.strings = strings;
+        this.fastArrays = fastArrays;
+        this.shortCircuit = shortCircuit;
+    }
+
+    public void generate(Ast.ClassDec classDec) {
+        className = classDec.name;
+        classIndex = new ProgramIndex(); // The class itself is indexed from its own tree.
+        classIndex.add(classDec);
+        for (Ast.VarDec varDec : classDec.classVarDecs) {
+            for (String name : varDec.names) {
+                symbolTable.defineClass(name, varDec.type, varDec.kind);
+            }
+        }
+        stringStatic = symbolTable.varCount(SymbolKind.STATIC);
+        if (isClassPool()) {
+            strings.clear();
+            strings.addAll(classDec);
+        }
+        for (Ast.SubroutineDec subroutine : classDec.subroutines) {
+            compileSubroutine(subroutine);
+            symbolTable.resetKindCountSubroutine();
+        }
+        symbolTable.resetKindCountClass();
+        if (isClassPool() && !strings.isEmpty()) {
+            writer.writeFunction(className + ".$strings", 0);
+            for (int i = 0; i < strings.getStrings().size(); i++) {
+                compileNewString(strings.getStrings().get(i));
+                writer.writePop(SymbolKind.STATIC, stringStatic + i);
+            }
+            writer.writePush(SymbolKind.constant, 0);
+            writer.writeReturn();
+        }
+    }
+
+    /**
+     * Writes the StringPool class which builds the literals of a program pool into one array on the first call
+     * and returns the array.
+     */
+    public void generateStringPool(StringPool pool) {
+        writer.writeFunction(StringPool.PROGRAM_CLASS + ".init", 0);
+        writer.writePush(SymbolKind.STATIC, 0);
+        writer.writeIf("strings_ready");
+        writer.writePush(SymbolKind.constant, pool.getStrings().size());
+        writer.writeCall("Array.new", 1);
+        writer.writePop(SymbolKind.STATIC, 0);
+        for (int i = 0; i < pool.getStrings().size(); i++) {
+            compileNewString(pool.getStrings().get(i));
+            writer.writePop(SymbolKind.temp, 0);
+            writer.writePush(SymbolKind.STATIC, 0);
+            writer.writePush(SymbolKind.constant, i);
+            writer.writeArithmetic(ArithmeticCommand.ADD);
+            writer.writePop(SymbolKind.pointer, 1);
+            writer.writePush(SymbolKind.temp, 0);
+            writer.writePop(SymbolKind.that, 0);
+        }
+        writer.writeLabel("strings_ready");
+        writer.writePush(SymbolKind.STATIC, 0);
+        writer.writeReturn();
+    }
+
+    private boolean isClassPool() {
+        return strings != null && strings.getScope() == StringPool.Scope.CLASS;
+    }
+
+    private void compileSubroutine(Ast.SubroutineDec subroutine) {
+        this.subroutine = subroutine;
+        if (subroutine.kind.equals("method")) {
+            symbolTable.defineSubroutine("this", className, "arg");
+        }
+        for (Ast.Parameter parameter : subroutine.parameters) {
+            symbolTable.defineSubroutine(parameter.name, parameter.type, "arg");
+        }
+        for (Ast.VarDec varDec : subroutine.varDecs) {
+            for (String name : varDec.names) {
+                symbolTable.defineSubroutine(name, varDec.type, "var");
+            }
+        }
+        writer.writeFunction(className+"."+subroutine.name, symbolTable.varCount(SymbolKind.VAR));
+        if (subroutine.kind.equals("constructor")) {
+            writer.writePush(SymbolKind.constant, symbolTable.varCount(SymbolKind.FIELD));  // how much memory for instance
+            writer.writeCall("Memory.alloc", 1);             // allocate new memory
+            writer.writePop(SymbolKind.pointer, 0);                // anchor base address to this
+        } else if (subroutine.kind.equals("method")) {
+            writer.writePush(SymbolKind.ARG, 0);                   // get base address from arg0
+            writer.writePop(SymbolKind.pointer, 0);                // anchor it to this
+        }
+        if (strings != null && StringPool.usesStrings(subroutine)) {
+            compileStringPoolCheck();
+        }
+        compileStatements(subroutine.statements);
+    }
+
+    private void compileStatements(List<Ast.Statement> statements) {
+        for (Ast.Statement statement : statements) {
+            compileStatement(statement);
+        }
+    }
+
+    private void compileStatement(Ast.Statement statement) {
+        thatAddress = null;
+        if (statement instanceof Ast.LetStatement) {
+            compileLetStatement((Ast.LetStatement) statement);
+        } else if (statement instanceof Ast.IfStatement) {
+            compileIfStatement((Ast.IfStatement) statement);
+        } else if (statement instanceof Ast.WhileStatement) {
+            compileWhileStatement((Ast.WhileStatement) statement);
+        } else if (statement instanceof Ast.DoStatement) {
+            compileSubroutineCall(((Ast.DoStatement) statement).call);
+            writer.writePop(SymbolKind.temp, 0); // We don't need to store result in 'do', so clear the stack.
+        } else if (statement instanceof Ast.ReturnStatement) {
+            Ast.Expression value = ((Ast.ReturnStatement) statement).value;
+            if (value == null) {
+                writer.writePush(SymbolKind.constant, 0); // if empty return we generate push 0 for it.
+            } else {
+                compileExpression(value);
+            }
+            writer.writeReturn();
+        } else {
+            throw new IllegalArgumentException("Not implemented statement: " + statement);
+        }
+    }
+
+    private void compileLetStatement(Ast.LetStatement let) {
+        Variable var = symbolTable.findVariable(let.name);
+        if (let.index != null && fastArrays && canStoreWithoutTemp(var, let.index, let.value)) {
+            compileExpression(let.value);
+            writer.writePop(SymbolKind.that, compileElementAddress(var, let.index));
+        } else if (let.index != null) {                        // arr[exp] = exp2;
+            writer.writePush(var.getKind(), var.getIndex());    // push arr
+            compileExpression(let.index);                       // [exp]
+            writer.writeArithmetic(ArithmeticCommand.ADD);      // arr + [exp]
+            compileExpression(let.value);                       // exp2
+            writer.writePop(SymbolKind.temp, 0);          // save exp2 to temp 0
+            writer.writePop(SymbolKind.pointer, 1);       // pop pointer 1 (that is arr)
+            writer.writePush(SymbolKind.temp, 0);         // temp 0 to stack
+            writer.writePop(SymbolKind.that, 0);          // arr[exp] = temp 0 (exp2);
+            thatAddress = null;
+        } else {
+            compileExpression(let.value);
+            writer.writePop(var.getKind(), var.getIndex());
+        }
+    }
+
+    private void compileIfStatement(Ast.IfStatement ifStatement) {
+        int count = labelCount++;
+        compileJumpIfFalse(ifStatement.condition, "if_L1_"+count);
+        compileStatements(ifStatement.thenStatements);
+        writer.writeGoto("goto_L2_"+count);
+        writer.writeLabel("if_L1_"+count);
+        if (ifStatement.elseStatements != null) {
+            compileStatements(ifStatement.elseStatements);
+        }
+        writer.writeLabel("goto_L2_"+count);
+    }
+
+    private void compileWhileStatement(Ast.WhileStatement whileStatement) {
+        int count = labelCount++;
+        writer.writeLabel("while_L1_"+count);
+        compileJumpIfFalse(whileStatement.condition, "while_L2_"+count);
+        compileStatements(whileStatement.statements);
+        writer.writeGoto("while_L1_"+count);
+        writer.writeLabel("while_L2_"+count);
+    }
+
+    private void compileJumpIfFalse(Ast.Expression condition, String label) {
+        if (shortCircuit) {
+            compileJump(condition, false, label);
+        } else {
+            compileExpression(condition);
+            writer.writeArithmetic(ArithmeticCommand.NOT);
+            writer.writeIf(label);
+        }
+    }
+
+    /**
+     * Jumps to the label if the condition is jumpIf and falls through otherwise. &amp;, | and ~ of boolean operands
+     * become jumps instead of bitwise operations: a &amp; b jumps on false as soon as a is false, a | b on true as
+     * soon as a is true, and the other cases jump past the rest when a already decides the result. The right
+     * operands of a chain are followed in a loop, and those jumps all go to the end of the condition.
+     */
+    private void compileJump(Ast.Expression condition, boolean jumpIf, String label) {
+        List<String> skips = new ArrayList<>();
+        Ast.Expression expression = condition;
+        boolean isBoolean = isBoolean(expression);
+        while (true) {
+            while (expression instanceof Ast.ParenthesizedExpression) {
+                expression = ((Ast.ParenthesizedExpression) expression).expression;
+            }
+            if (isBoolean && expression instanceof Ast.UnaryExpression && ((Ast.UnaryExpression) expression).op == '~') {
+                expression = ((Ast.UnaryExpression) expression).term;
+                jumpIf = !jumpIf;
+                continue;
+            }
+            if (isBoolean && expression instanceof Ast.BinaryExpression && isLogical(((Ast.BinaryExpression) expression).op)) {
+                Ast.BinaryExpression binary = (Ast.BinaryExpression) expression;
+                if ((binary.op == '&') != jumpIf) {
+                    compileJump(binary.left, jumpIf, label);
+                } else {
+                    String skip = "cond_L_" + labelCount++;
+                    compileJump(binary.left, !jumpIf, skip);
+                    skips.add(skip);
+                }
+                expression = binary.right; // Boolean as well, the whole chain is.
+                continue;
+            }
+            break;
+        }
+        if (isBoolean && expression instanceof Ast.KeywordConstant) {
+            if (((Ast.KeywordConstant) expression).keyword.equals("true") == jumpIf) {
+                writer.writeGoto(label);
+            }
+        } else {
+            compileExpression(expression);
+            if (!jumpIf) writer.writeArithmetic(ArithmeticCommand.NOT);
+            writer.writeIf(label);
+        }
+        for (String skip : skips) {
+            writer.writeLabel(skip);
+        }
+        if (!skips.isEmpty()) thatAddress = null; // Reached from several places.
+    }
+
+    private static boolean isLogical(char op) {
+        return op == '&' || op == '|';
+    }
+
+    /**
+     * @return true if the value is true or false: comparisons, boolean constants, variables and calls,
+     * and ~, &amp; and | of those
+     */
+    private boolean isBoolean(Ast.Expression expression) {
+        while (true) {
+            if (expression instanceof Ast.ParenthesizedExpression) {
+                expression = ((Ast.ParenthesizedExpression) expression).expression;
+            } else if (expression instanceof Ast.UnaryExpression && ((Ast.UnaryExpression) expression).op == '~') {
+                expression = ((Ast.UnaryExpression) expression).term;
+            } else if (expression instanceof Ast.BinaryExpression && isLogical(((Ast.BinaryExpression) expression).op)) {
+                if (!isBoolean(((Ast.BinaryExpression) expression).left)) return false;
+                expression = ((Ast.BinaryExpression) expression).right;
+            } else {
+                break;
+            }
+        }
+        if (expression instanceof Ast.BinaryExpression) {
+            return "<>=".indexOf(((Ast.BinaryExpression) expression).op) >= 0;
+        }
+        if (expression instanceof Ast.KeywordConstant) {
+            String keyword = ((Ast.KeywordConstant) expression).keyword;
+            return keyword.equals("true") || keyword.equals("false");
+        }
+        if (expression instanceof Ast.VarRef) {
+            return symbolTable.findVariable(((Ast.VarRef) expression).name).getType().equals("boolean");
+        }
+        if (expression instanceof Ast.SubroutineCall) {
+            Ast.SubroutineCall call = (Ast.SubroutineCall) expression;
+            Variable var = call.target != null ? symbolTable.lookup(call.target) : null;
+            String calleeClass = var != null ? var.getType() : call.target != null ? call.target : className;
+            ProgramIndex.Subroutine callee = findSubroutine(calleeClass, call.name);
+            return callee != null && callee.getReturnType().equals("boolean");
+        }
+        return false;
+    }
+
+    private void compileExpression(Ast.Expression expression) {
+        if (expression instanceof Ast.BinaryExpression) {
+            compileBinaryChain((Ast.BinaryExpression) expression);
+        } else if (expression instanceof Ast.IntegerConstant) {
+            writer.writePush(SymbolKind.constant, ((Ast.IntegerConstant) expression).value);
+        } else if (expression instanceof Ast.StringConstant) {
+            compileString(((Ast.StringConstant) expression).value);
+        } else if (expression instanceof Ast.KeywordConstant) {
+            compileKeyWordConstant(((Ast.KeywordConstant) expression).keyword);
+        } else if (expression instanceof Ast.VarRef) {
+            Variable var = symbolTable.findVariable(((Ast.VarRef) expression).name);
+            writer.writePush(var.getKind(), var.getIndex());
+        } else if (expression instanceof Ast.ArrayRef) {
+            Ast.ArrayRef arrayRef = (Ast.ArrayRef) expression;
+            Variable var = symbolTable.findVariable(arrayRef.name);
+            if (fastArrays) {
+                writer.writePush(SymbolKind.that, compileElementAddress(var, arrayRef.index));
+            } else {
+                writer.writePush(var.getKind(), var.getIndex());    // push arr
+                compileExpression(arrayRef.index);                  // [exp]
+                writer.writeArithmetic(ArithmeticCommand.ADD);      // arr + [exp]
+                writer.writePop(SymbolKind.pointer, 1);
+                writer.writePush(SymbolKind.that, 0);
+            }
+        } else if (expression instanceof Ast.SubroutineCall) {
+            compileSubroutineCall((Ast.SubroutineCall) expression);
+        } else if (expression instanceof Ast.ParenthesizedExpression) {
+            compileExpression(((Ast.ParenthesizedExpression) expression).expression);
+        } else if (expression instanceof Ast.UnaryExpression) {
+            Ast.UnaryExpression unary = (Ast.UnaryExpression) expression;
+            compileExpression(unary.term);
+            writeOp(unary.op, true); // Write op after unary expression.
+        } else {
+            throw new IllegalArgumentException("Not implemented expression: " + expression);
+        }
+    }
+
+    /**
+     * a op1 (b op2 c) is written as a, b, c, op2, op1. The chain is walked in a loop so long
+     * expressions don't use a stack frame per operator.
+     */
+    private void compileBinaryChain(Ast.BinaryExpression binary) {
+        StringBuilder ops = new StringBuilder();
+        Ast.Expression expression = binary;
+        while (expression instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression current = (Ast.BinaryExpression) expression;
+            compileExpression(current.left);
+            ops.append(current.op);
+            expression = current.right;
+        }
+        compileExpression(expression);
+        for (int i = ops.length() - 1; i >= 0; i--) {
+            writeOp(ops.charAt(i), false); // Write op after second expression.
+        }
+    }
+
+    /**
+     * Builds the pooled literals if this is the first subroutine which uses them.
+     */
+    private void compileStringPoolCheck() {
+        writer.writePush(SymbolKind.STATIC, stringStatic);
+        writer.writeIf("strings_ready");
+        if (isClassPool()) {
+            writer.writeCall(className + ".$strings", 0);
+            writer.writePop(SymbolKind.temp, 0);
+        } else {
+            writer.writeCall(StringPool.PROGRAM_CLASS + ".init", 0);
+            writer.writePop(SymbolKind.STATIC, stringStatic);
+        }
+        writer.writeLabel("strings_ready");
+    }
+
+    /**
+     * Points pointer 1 at the element, or at the array for a constant index, unless it already points there.
+     * @return offset of the element from pointer 1
+     */
+    private int compileElementAddress(Variable array, Ast.Expression index) {
+        int offset = index instanceof Ast.IntegerConstant ? ((Ast.IntegerConstant) index).value : 0;
+        String address = elementAddress(array, index);
+        if (address != null && address.equals(thatAddress)) {
+            return offset;
+        }
+        writer.writePush(array.getKind(), array.getIndex());
+        if (!(index instanceof Ast.IntegerConstant)) {
+            compileExpression(index);
+            writer.writeArithmetic(ArithmeticCommand.ADD);
+        }
+        writer.writePop(SymbolKind.pointer, 1);
+        thatAddress = address;
+        return offset;
+    }
+
+    /**
+     * Variables only change between statements or in calls, which forget pointer 1, so the names describe
+     * the address within a statement.
+     * @return description of the address pointer 1 gets for the element, null if it can't be told apart
+     */
+    private String elementAddress(Variable array, Ast.Expression index) {
+        String base = array.getKind() + " " + array.getIndex();
+        if (index instanceof Ast.IntegerConstant) {
+            return base;
+        }
+        if (index instanceof Ast.VarRef) {
+            Variable var = symbolTable.findVariable(((Ast.VarRef) index).name);
+            return base + " + " + var.getKind() + " " + var.getIndex();
+        }
+        return null;
+    }
+
+    /**
+     * The value can be computed before the address if neither has side effects, or if the address only reads
+     * locals and arguments, which no call can change.
+     */
+    private boolean canStoreWithoutTemp(Variable array, Ast.Expression index, Ast.Expression value) {
+        if (isPure(index) && isPure(value)) return true;
+        boolean frameArray = array.getKind() == SymbolKind.VAR || array.getKind() == SymbolKind.ARG;
+        return frameArray && readsFrameOnly(index);
+    }
+
+    /**
+     * @return true if the expression calls no subroutine; multiply and divide are OS calls without side effects
+     */
+    private static boolean isPure(Ast.Expression expression) {
+        while (expression instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression binary = (Ast.BinaryExpression) expression;
+            if (!isPure(binary.left)) return false;
+            expression = binary.right;
+        }
+        if (expression instanceof Ast.SubroutineCall || expression instanceof Ast.StringConstant) return false;
+        if (expression instanceof Ast.ArrayRef) return isPure(((Ast.ArrayRef) expression).index);
+        if (expression instanceof Ast.ParenthesizedExpression) {
+            return isPure(((Ast.ParenthesizedExpression) expression).expression);
+        }
+        if (expression instanceof Ast.UnaryExpression) return isPure(((Ast.UnaryExpression) expression).term);
+        return true;
+    }
+
+    /**
+     * @return true if the expression only reads constants, locals and arguments
+     */
+    private boolean readsFrameOnly(Ast.Expression expression) {
+        while (expression instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression binary = (Ast.BinaryExpression) expression;
+            if (!readsFrameOnly(binary.left)) return false;
+            expression = binary.right;
+        }
+        if (expression instanceof Ast.IntegerConstant || expression instanceof Ast.KeywordConstant) return true;
+        if (expression instanceof Ast.VarRef) {
+            SymbolKind kind = symbolTable.findVariable(((Ast.VarRef) expression).name).getKind();
+            return kind == SymbolKind.VAR || kind == SymbolKind.ARG;
+        }
+        if (expression instanceof Ast.ParenthesizedExpression) {
+            return readsFrameOnly(((Ast.ParenthesizedExpression) expression).expression);
+        }
+        if (expression instanceof Ast.UnaryExpression) return readsFrameOnly(((Ast.UnaryExpression) expression).term);
+        return false;
+    }
+
+    private void compileString(String stringConst) {
+        thatAddress = null; // Building the string or reading the program pool moves pointer 1.
+        if (isClassPool()) {
+            writer.writePush(SymbolKind.STATIC, stringStatic + strings.indexOf(stringConst));
+        } else if (strings != null) {
+            writer.writePush(SymbolKind.STATIC, stringStatic);
+            writer.writePush(SymbolKind.constant, strings.indexOf(stringConst));
+            writer.writeArithmetic(ArithmeticCommand.ADD);
+            writer.writePop(SymbolKind.pointer, 1);
+            writer.writePush(SymbolKind.that, 0);
+        } else {
+            compileNewString(stringConst);
+        }
+    }
+
+    private void compileNewString(String stringConst) {
+        writer.writePush(SymbolKind.constant, stringConst.length());
+        writer.writeCall("String.new", 1);
+        for (int i = 0; i < stringConst.length(); i++) {
+            writer.writePush(SymbolKind.constant, (int) stringConst.charAt(i));
+            writer.writeCall("String.appendChar", 2); // 0 is String base address, 1 is char
+        }
+    }
+
+    private void compileKeyWordConstant(String keyword) {
+        switch (keyword) {
+            case "true": {
+                writer.writePush(SymbolKind.constant, 1);   // True is -1.
+                writer.writeArithmetic(ArithmeticCommand.NEG);
+            } break;
+            case "false":                                   // False is 0.
+            case "null": writer.writePush(SymbolKind.constant, 0); break;   // Null is 0.
+            case "this": writer.writePush(SymbolKind.pointer, 0); break;    // This is pointer 0.
+            default: throw new IllegalArgumentException("Not a keyword constant: " + keyword);
+        }
+    }
+
+    /**
+     * obj.method() pushes the object before the arguments, Class.function() passes only the arguments
+     * and method() is called on this. A call of an indexed class is checked against its declaration,
+     * and an unqualified call of a function or constructor of this class does not pass this.
+     */
+    private void compileSubroutineCall(Ast.SubroutineCall call) {
+        Variable var = call.target != null ? symbolTable.lookup(call.target) : null; // Null for a class name.
+        String calleeClass = var != null ? var.getType() : call.target != null ? call.target : className;
+        ProgramIndex.Subroutine callee = findSubroutine(calleeClass, call.name);
+        boolean isMethod = var != null || (call.target == null && (callee == null || callee.isMethod()));
+        checkCall(call, calleeClass, callee, isMethod);
+        if (var != null) {
+            writer.writePush(var.getKind(), var.getIndex()); // Implicit push of method object.
+        } else if (isMethod) {
+            writer.writePush(SymbolKind.pointer, 0);         // Method of this object, this goes before the arguments.
+        }
+        for (Ast.Expression argument : call.arguments) {
+            compileExpression(argument);
+        }
+        int numberOfArgs = call.arguments.size();
+        writer.writeCall(calleeClass+"."+call.name, isMethod ? numberOfArgs+1 : numberOfArgs); // +1 cause of implicit push.
+        thatAddress = null;
+    }
+
+    private ProgramIndex.Subroutine findSubroutine(String calleeClass, String name) {
+        return calleeClass.equals(className) ? classIndex.find(calleeClass, name) : index.find(calleeClass, name);
+    }
+
+    private void checkCall(Ast.SubroutineCall call, String calleeClass, ProgramIndex.Subroutine callee, boolean isMethod) {
+        if (callee == null) {
+            if (calleeClass.equals(className) || index.hasClass(calleeClass)) {
+                throw error("Undefined subroutine " + calleeClass + "." + call.name);
+            }
+            return; // A class outside the program, like the OS.
+        }
+        if (isMethod && !callee.isMethod()) {
+            throw error("The " + callee.getKind() + " " + callee.getFullName() + " is called on an object");
+        }
+        if (!isMethod && callee.isMethod()) {
+            throw error("Method " + callee.getFullName() + " is called as a function");
+        }
+        if (isMethod && call.target == null && subroutine.kind.equals("function")) {
+            throw error("Method " + callee.getFullName() + " is called without an object");
+        }
+        if (callee.getParameterCount() != call.arguments.size()) {
+            throw error(callee.getFullName() + " expects " + callee.getParameterCount() + " argument(s), given "
+                    + call.arguments.size());
+        }
+    }
+
+    private RuntimeException error(String message) {
+        return new RuntimeException("In " + className + "." + subroutine.name + ": " + message);
+    }
+
+    private void writeOp(char op, boolean isUnary) {
+        switch (op) {
+            case '+': writer.writeArithmetic(ArithmeticCommand.ADD); break;
+            case '-': {
+                if (isUnary) {
+                    writer.writeArithmetic(ArithmeticCommand.NEG);
+                } else {
+                    writer.writeArithmetic(ArithmeticCommand.SUB);
+                }
+            } break;
+            case '*': writer.writeArithmetic(ArithmeticCommand.MULTIPLY); thatAddress = null; break;
+            case '/': writer.writeArithmetic(ArithmeticCommand.DIVIDE); thatAddress = null; break;
+            case '=': writer.writeArithmetic(ArithmeticCommand.EQ); break;
+            case '<': writer.writeArithmetic(ArithmeticCommand.LT); break;
+            case '>': writer.writeArithmetic(ArithmeticCommand.GT); break;
+            case '&': writer.writeArithmetic(ArithmeticCommand.AND); break;
+            case '|': writer.writeArithmetic(ArithmeticCommand.OR); break;
+            case '~': writer.writeArithmetic(ArithmeticCommand.NOT); break;
+            default: throw new IllegalArgumentException("Not implemented op: " + op);
+        }
+    }
+}
@@ -1,54 +1,59 @@
 package ru.riverx;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Parses the tokens of a class into an {@link Ast.ClassDec}. The tree is then walked by
+ * {@link XmlPrinter} for the .xml output and by {@link CodeGenerator} for the VM code.
+ */
 public class CompilationEngine {
+    private static final List<Token> PRIMITIVE_TYPES = Arrays.asList(Token.INT, Token.CHAR, Token.BOOLEAN);
+    private static final List<Token> VOID_TYPE = Collections.singletonList(Token.VOID);
     private final JackTokenizer tokenizer;
-    private final List<String> tokensXml;
     private Token currentToken;
-    private SymbolTable symbolTable;
-    private VMWriter writer;
     private String className;
-    private int paramListIndex;
-    private int labelCount;
-    private String anotherClass;
-    private List<String> identifiers;
+    private final Ast.ClassDec tree;
 
     public CompilationEngine(JackTokenizer tokenizer) {
         this.tokenizer = tokenizer;
-        this.tokensXml = new ArrayList<>();
-        this.writer = new VMWriter();
-        this.labelCount = 0;
-        this.identifiers = new ArrayList<>();
-        parse();
+        this.tree = parse();
     }
 
-    public List<String> getTokensXml() { return tokensXml; }
-
-    public List<String> getGeneratedVMCode() { return writer.vmCode; }
+    /**
+     * @return the parsed class or null if the tokens contain no class
+     */
+    public Ast.ClassDec getTree() {
+        return tree;
+    }
 
-    private void parse() {
+    private Ast.ClassDec parse() {
         while (tokenizer.hasNextToken()) {
             currentToken = tokenizer.getNextToken();
             if (isGivenToken(TokenType.keyword, "class")) {
-                symbolTable = new SymbolTable();
-                compileClass();
+                return compileClass();
             }
         }
+        return null;
     }
 
-    private void compileClass() {
-        tokensXml.add("<class>");
+    private Ast.ClassDec compileClass() {
         checkToken(TokenType.keyword, "class");
         className = currentToken.getValue();
         compileClassName();
         checkToken(TokenType.symbol, "{");
-        compileClassVarDec();
-        compileSubroutineDec();
+        List<Ast.VarDec> classVarDecs = new ArrayList<>();
+        while (isGivenToken(TokenType.keyword, "static") || isGivenToken(TokenType.keyword, "field")) {
+            classVarDecs.add(compileVarDec(currentToken.getValue()));
+        }
+        List<Ast.SubroutineDec> subroutines = new ArrayList<>();
+        while (isSubroutineDecNext()) {
+            subroutines.add(compileSubroutineDec());
+        }
         checkToken(TokenType.symbol, "}");
-        symbolTable.resetKindCountClass();
-        tokensXml.add("</class>");
+        return new Ast.ClassDec(className, classVarDecs, subroutines);
     }
 
     private void compileClassName() {
@@ -58,42 +63,25 @@ public class CompilationEngine {
         checkIdentifier();
     }
 
-    private void compileClassVarDec() {
-        String kind = currentToken.getValue();
-        if (compileSpecialVarDec()) {
-            String type = currentToken.getValue();
-            compileType();
-            //String name = currentToken.getValue();
-            compileVarName();
-            checkToken(TokenType.symbol, ";");
-            tokensXml.add("</classVarDec>");
-            for (String identifier : identifiers) {
-                symbolTable.defineClass(identifier, type, kind);
-            }
-            identifiers.clear();
-            compileClassVarDec(); // For additional class var declarations
-        }
-    }
-
-    private boolean compileSpecialVarDec() {
-        if (isGivenToken(TokenType.keyword, "static")) {
-            tokensXml.add("<classVarDec>");
-            checkToken(TokenType.keyword, "static");
-            return true;
-        } else if (isGivenToken(TokenType.keyword, "field")) {
-            tokensXml.add("<classVarDec>");
-            checkToken(TokenType.keyword, "field");
-            return true;
+    /**
+     * Parses 'kind type name (, name)* ;' for static, field and var declarations.
+     */
+    private Ast.VarDec compileVarDec(String kind) {
+        checkToken(TokenType.keyword, kind);
+        String type = compileType();
+        List<String> names = new ArrayList<>();
+        names.add(compileIdentifierName());
+        while (isGivenToken(TokenType.symbol, ",")) {
+            checkToken(TokenType.symbol, ",");
+            names.add(compileIdentifierName());
         }
-        return false;
+        checkToken(TokenType.symbol, ";");
+        return new Ast.VarDec(kind, type, names);
     }
 
-    private void compileType() {
-        List<Token> tokenList = new ArrayList<>();
-        tokenList.add(new Token("int", TokenType.keyword));
-        tokenList.add(new Token("char", TokenType.keyword));
-        tokenList.add(new Token("boolean", TokenType.keyword));
-        if (!checkTokenList(tokenList, false)) {
+    private String compileType() {
+        String type = currentToken.getValue();
+        if (!checkTokenList(PRIMITIVE_TYPES, false)) {
             if (isGivenToken(TokenType.identifier, currentToken.getValue())) {
                 compileClassName();
             } else {
@@ -101,6 +89,7 @@ public class CompilationEngine {
                 checkToken(TokenType.keyword, "int, char, boolean, 'customType'");
             }
         }
+        return type;
     }
 
     private boolean isTypeNext() {
@@ -108,466 +97,273 @@ public class CompilationEngine {
                 || isGivenToken(TokenType.keyword, "boolean") || isGivenToken(TokenType.identifier, currentToken.getValue());
     }
 
-    private void compileVarName() {
-        identifiers.add(currentToken.getValue());
-        checkIdentifier();
-        compileAddVarName();
-    }
-
-    private void compileTypeVarName() {
-        String type = currentToken.getValue();
-        compileType();
-        String name = currentToken.getValue();
-        checkIdentifier();
-        symbolTable.defineSubroutine(name, type, "arg");
-        compileAddTypeVarName();
-    }
-
-    private void compileAddVarName() {
-        if (isGivenToken(TokenType.symbol, ",")) {
-            checkToken(TokenType.symbol, ",");
-            compileVarName();
-        }
-    }
-
-    private void compileAddTypeVarName() {
-        if (isGivenToken(TokenType.symbol, ",")) {
-            checkToken(TokenType.symbol, ",");
-            compileTypeVarName();
-        }
-    }
-
-    private void compileSubroutineDec() {
-        int subIndex = compileSpecialSubroutineDec();
-        if (subIndex >= 0) {
-            ArrayList<Token> tokenList = new ArrayList<>();
-            tokenList.add(new Token("void", TokenType.keyword));
-            if (!checkTokenList(tokenList, false)) {
-                compileType();
-            }
-            String funcName = currentToken.getValue();
-            compileSubroutineName();
-            checkToken(TokenType.symbol, "(");
-            compileParameterList();
-            checkToken(TokenType.symbol, ")");
-
-            compileSubroutineBody(funcName, subIndex);
-            tokensXml.add("</subroutineDec>");
-            symbolTable.resetKindCountSubroutine();
-            compileSubroutineDec();
-        }
+    private boolean isSubroutineDecNext() {
+        return isGivenToken(TokenType.keyword, "constructor") || isGivenToken(TokenType.keyword, "function")
+                || isGivenToken(TokenType.keyword, "method");
     }
 
-    private int compileSpecialSubroutineDec() {
-        if (isGivenToken(TokenType.keyword, "constructor")) {
-            tokensXml.add("<subroutineDec>");
-            checkToken(TokenType.keyword, "constructor");
-            return 0;
-        } else if (isGivenToken(TokenType.keyword, "function")) {
-            tokensXml.add("<subroutineDec>");
-            checkToken(TokenType.keyword, "function");
-            return 1;
-        } else if (isGivenToken(TokenType.keyword, "method")) {
-            tokensXml.add("<subroutineDec>");
-            checkToken(TokenType.keyword, "method");
-            symbolTable.defineSubroutine("this", className, "arg");
-            return 2;
-        }
-        return -1;
-    }
-
-    private void compileSubroutineName() {
-        checkIdentifier();
-    }
-
-    private void compileParameterList() {
-        tokensXml.add("<parameterList>");
-        if (isTypeNext()) {
-            compileTypeVarName();
+    private Ast.SubroutineDec compileSubroutineDec() {
+        String kind = currentToken.getValue();
+        checkToken(TokenType.keyword, kind);
+        String returnType = currentToken.getValue();
+        if (!checkTokenList(VOID_TYPE, false)) {
+            compileType();
         }
-        tokensXml.add("</parameterList>");
-    }
+        String name = compileIdentifierName();
+        checkToken(TokenType.symbol, "(");
+        List<Ast.Parameter> parameters = compileParameterList();
+        checkToken(TokenType.symbol, ")");
 
-    private void compileSubroutineBody(String funcName, int subIndex) {
-        tokensXml.add("<subroutineBody>");
         checkToken(TokenType.symbol, "{");
-        compileVarDec();
-        writer.writeFunction(className+"."+funcName, Variable.localCount);
-        if (subIndex == 0) { // This is constructor.
-            writer.writePush(SymbolKind.constant, Variable.fieldCount);  // how much memory for instance
-            writer.writeCall("Memory.alloc", 1);             // allocate new memory
-            writer.writePop(SymbolKind.pointer, 0);                // anchor base address to this
-        } else if (subIndex == 2) { // This is method.
-            writer.writePush(SymbolKind.ARG, 0);                   // get base address from arg0
-            writer.writePop(SymbolKind.pointer, 0);                // anchor it to this
+        List<Ast.VarDec> varDecs = new ArrayList<>();
+        while (isGivenToken(TokenType.keyword, "var")) {
+            varDecs.add(compileVarDec("var"));
         }
-        tokensXml.add("<statements>");
-        compileStatements();
-        tokensXml.add("</statements>");
+        List<Ast.Statement> statements = compileStatements();
         checkToken(TokenType.symbol, "}");
-        tokensXml.add("</subroutineBody>");
+        return new Ast.SubroutineDec(kind, returnType, name, parameters, varDecs, statements);
     }
 
-    private void compileVarDec() {
-        if (isGivenToken(TokenType.keyword, "var")) {
-            tokensXml.add("<varDec>");
-            checkToken(TokenType.keyword, "var");
-            String type = currentToken.getValue();
-            compileType();
-            //String name = currentToken.getValue();
-            compileVarName();
-            checkToken(TokenType.symbol, ";");
-            tokensXml.add("</varDec>");
-            for (String identifier : identifiers) {
-                symbolTable.defineSubroutine(identifier, type, "var");
+    private List<Ast.Parameter> compileParameterList() {
+        List<Ast.Parameter> parameters = new ArrayList<>();
+        if (isTypeNext()) {
+            parameters.add(compileParameter());
+            while (isGivenToken(TokenType.symbol, ",")) {
+                checkToken(TokenType.symbol, ",");
+                parameters.add(compileParameter());
             }
-            identifiers.clear();
-            compileVarDec();
         }
+        return parameters;
     }
 
-    private void compileStatements() {
-        compileStatement();
+    private Ast.Parameter compileParameter() {
+        String type = compileType();
+        return new Ast.Parameter(type, compileIdentifierName());
     }
 
-    private void compileStatement() {
-        // Current statement.
-        boolean hasStatement = false;
-        if (isGivenToken(TokenType.keyword, "let")) {
-            compileLetStatement();
-            hasStatement = true;
+    private List<Ast.Statement> compileStatements() {
+        List<Ast.Statement> statements = new ArrayList<>();
+        Ast.Statement statement;
+        while ((statement = compileStatement()) != null) {
+            statements.add(statement);
         }
-        else if (isGivenToken(TokenType.keyword, "if")) {
-            compileIfStatement();
-            hasStatement = true;
-        }
-        else if (isGivenToken(TokenType.keyword, "while")) {
-            compileWhileStatement();
-            hasStatement = true;
-        }
-        else if (isGivenToken(TokenType.keyword, "do")) {
-            compileDoStatement();
-            hasStatement = true;
-        }
-        else if (isGivenToken(TokenType.keyword, "return")) {
-            compileReturnStatement();
-            hasStatement = true;
-        }
-        if (hasStatement) {
-            compileStatements(); // for another statements.
+        return statements;
+    }
+
+    /**
+     * @return the statement or null if the current token does not start one
+     */
+    private Ast.Statement compileStatement() {
+        if (currentToken.getType() != TokenType.keyword) return null;
+        switch (currentToken.getValue()) {
+            case "let": return compileLetStatement();
+            case "if": return compileIfStatement();
+            case "while": return compileWhileStatement();
+            case "do": return compileDoStatement();
+            case "return": return compileReturnStatement();
+            default: return null;
         }
     }
 
-    private void compileLetStatement() {
-        tokensXml.add("<letStatement>");
+    private Ast.Statement compileLetStatement() {
         checkToken(TokenType.keyword, "let");
-        String name = currentToken.getValue();
-        Variable var = symbolTable.findVariable(name);
-        if (currentToken.getType() == TokenType.identifier && tokenizer.hasNextToken() &&
-        tokenizer.getSecondNextToken().getValue().equals("[")) {
-            compileIdentifier(); // array
-        } else {
-            checkIdentifier();  // if not array
-            checkToken(TokenType.symbol, "=");
-            tokensXml.add("<expression>");
-            compileExpression();
-            tokensXml.add("</expression>");
-            writer.writePop(var.getKind(), var.getIndex());
+        String name = compileIdentifierName();
+        Ast.Expression index = null;
+        if (isGivenToken(TokenType.symbol, "[")) {
+            index = compileArrayExpression();
         }
+        checkToken(TokenType.symbol, "=");
+        Ast.Expression value = compileExpression();
         checkToken(TokenType.symbol, ";");
-        tokensXml.add("</letStatement>");
+        return new Ast.LetStatement(name, index, value);
     }
 
-    private void compileArrayExpression() {
+    private Ast.Expression compileArrayExpression() {
         checkToken(TokenType.symbol, "[");
-        tokensXml.add("<expression>");
-        compileExpression();
-        tokensXml.add("</expression>");
+        Ast.Expression index = compileExpression();
         checkToken(TokenType.symbol, "]");
+        return index;
     }
 
-    private void compileIfStatement() {
-        int count = labelCount++;
-        tokensXml.add("<ifStatement>");
+    private Ast.Statement compileIfStatement() {
         checkToken(TokenType.keyword, "if");
-        compileBracketExpression();
-        writer.writeArithmetic(ArithmeticCommand.NOT);
-        writer.writeIf("if_L1_"+count);
-        compileBlockStatements();
-        writer.writeGoto("goto_L2_"+count);
-        writer.writeLabel("if_L1_"+count);
+        Ast.Expression condition = compileBracketExpression();
+        List<Ast.Statement> thenStatements = compileBlockStatements();
+        List<Ast.Statement> elseStatements = null;
         if (isGivenToken(TokenType.keyword, "else")) {
             checkToken(TokenType.keyword, "else");
-            compileBlockStatements();
+            elseStatements = compileBlockStatements();
         }
-        writer.writeLabel("goto_L2_"+count);
-        tokensXml.add("</ifStatement>");
+        return new Ast.IfStatement(condition, thenStatements, elseStatements);
     }
 
-    private void compileBracketExpression() {
+    private Ast.Expression compileBracketExpression() {
         checkToken(TokenType.symbol, "(");
-        tokensXml.add("<expression>");
-        compileExpression();
-        tokensXml.add("</expression>");
+        Ast.Expression expression = compileExpression();
         checkToken(TokenType.symbol, ")");
+        return expression;
     }
 
-    private void compileBlockStatements() {
+    private List<Ast.Statement> compileBlockStatements() {
         checkToken(TokenType.symbol, "{");
-        tokensXml.add("<statements>");
-        compileStatements();
-        tokensXml.add("</statements>");
+        List<Ast.Statement> statements = compileStatements();
         checkToken(TokenType.symbol, "}");
+        return statements;
     }
 
-    private void compileWhileStatement() {
-        int count = labelCount++;
-        tokensXml.add("<whileStatement>");
+    private Ast.Statement compileWhileStatement() {
         checkToken(TokenType.keyword, "while");
-        checkToken(TokenType.symbol, "(");
-        writer.writeLabel("while_L1_"+count);
-        tokensXml.add("<expression>");
-        compileExpression();
-        tokensXml.add("</expression>");
-        checkToken(TokenType.symbol, ")");
-        writer.writeArithmetic(ArithmeticCommand.NOT);
-        writer.writeIf("while_L2_"+count);
-        compileBlockStatements();
-        writer.writeGoto("while_L1_"+count);
-        writer.writeLabel("while_L2_"+count);
-        tokensXml.add("</whileStatement>");
+        Ast.Expression condition = compileBracketExpression();
+        return new Ast.WhileStatement(condition, compileBlockStatements());
     }
 
-    private void compileDoStatement() {
-        tokensXml.add("<doStatement>");
+    private Ast.Statement compileDoStatement() {
         checkToken(TokenType.keyword, "do");
-        compileIdentifier();
-        writer.writePop(SymbolKind.temp, 0); // We don't need to store result in 'do', so clear the stack.
+        String name = compileIdentifierName();
+        if (!isGivenToken(TokenType.symbol, "(") && !isGivenToken(TokenType.symbol, ".")) {
+            checkToken(TokenType.symbol, "(");
+        }
+        Ast.SubroutineCall call = compileSubroutineCall(name);
         checkToken(TokenType.symbol, ";");
-        tokensXml.add("</doStatement>");
+        return new Ast.DoStatement(call);
     }
 
-    private void compileReturnStatement() {
-        tokensXml.add("<returnStatement>");
+    private Ast.Statement compileReturnStatement() {
         checkToken(TokenType.keyword, "return");
-        if (!tryCompileExpression()) {
-            tokensXml.remove(tokensXml.size() - 1);
-            tokensXml.remove(tokensXml.size() - 1);
-            writer.writePush(SymbolKind.constant, 0); // if empty return we generate push 0 for it.
+        Ast.Expression value = null;
+        if (!isGivenToken(TokenType.symbol, ";")) {
+            value = compileExpression();
         }
-        writer.writeReturn();
         checkToken(TokenType.symbol, ";");
-        tokensXml.add("</returnStatement>");
+        return new Ast.ReturnStatement(value);
     }
 
-    // I don't like the way it gives in the course, maybe i will change it later
-    private void compileExpression() {
-        //tokensXml.add("<expression>");
-        compileTerm();
-        if (isOpNext()) {
-            compileOpTerm();
+    /**
+     * Parses 'term (op term)*' in a loop, then groups the operators to the right: term op (term op (...)).
+     */
+    private Ast.Expression compileExpression() {
+        List<Ast.Expression> terms = new ArrayList<>();
+        StringBuilder ops = new StringBuilder();
+        terms.add(compileTerm());
+        while (isOpNext()) {
+            ops.append(currentToken.getValue().charAt(0));
+            checkToken(TokenType.symbol, currentToken.getValue());
+            terms.add(compileTerm());
         }
-        //tokensXml.add("</expression>");
-    }
-
-    private void compileOpTerm() {
-        // Get the op.
-        final String symbols = JackTokenizer.getSymbols();
-        int index = symbols.indexOf(currentToken.getValue());
-        // Compile op.
-        compileOp();
-        // Compile next exp.
-        compileExpression();
-        // Write op after second expression.
-        writeOp(symbols.charAt(index), false);
+        Ast.Expression expression = terms.get(terms.size() - 1);
+        for (int i = ops.length() - 1; i >= 0; i--) {
+            expression = new Ast.BinaryExpression(terms.get(i), ops.charAt(i), expression);
+        }
+        return expression;
     }
 
-    private void compileTerm() {
-        tokensXml.add("<term>");
+    private Ast.Expression compileTerm() {
         switch (currentToken.getType()) {
             case integerConstant: {
                 String numStr = currentToken.getValue();
                 checkToken(TokenType.integerConstant, numStr);
-                writer.writeConstant(numStr);
-            } break;
+                return new Ast.IntegerConstant(Integer.parseInt(numStr));
+            }
             case stringConstant: {
                 String stringConst = currentToken.getValue();
                 checkToken(TokenType.stringConstant, stringConst);
-                compileString(stringConst, stringConst.length());
-            } break;
-            case keyword: compileKeyWordConstant(); break;
-            case identifier: compileIdentifier(); break;
+                return new Ast.StringConstant(stringConst);
+            }
+            case keyword: return compileKeyWordConstant();
+            case identifier: return compileIdentifier();
             case symbol: {
-                if (currentToken.getValue().equals("(")) { compileBracketExpression(); }
-                else if (isUnaryOp()) { compileUnaryTerm(); }
-                else throw new RuntimeException("Unexpected token: " + currentToken.toString() + ", expected: term");
-            } break;
+                if (currentToken.getValue().equals("(")) {
+                    return new Ast.ParenthesizedExpression(compileBracketExpression());
+                } else if (isUnaryOp()) {
+                    char op = currentToken.getValue().charAt(0);
+                    checkToken(TokenType.symbol, currentToken.getValue());
+                    return new Ast.UnaryExpression(op, compileTerm());
+                }
+                throw new RuntimeException("Unexpected token: " + currentToken.toString() + ", expected: term");
+            }
             default: throw new RuntimeException("Unexpected token: " + currentToken.toString() + ", expected: term");
         }
-        tokensXml.add("</term>");
     }
 
-    private void compileString(String stringConst, int length) {
-        writer.writePush(SymbolKind.constant, length);
-        writer.writeCall("String.new", 1);
-        for (char c : stringConst.toCharArray()) {
-            writer.writePush(SymbolKind.constant, (int)c);
-            writer.writeCall("String.appendChar", 2); // 0 is String base address, 1 is char
-        }
-    }
-
-    private void compileIdentifier() {
-        String name = currentToken.getValue();
-        Variable var;
-        try {
-            var = symbolTable.findVariable(name);
-        } catch (RuntimeException e) {
-            // That means that we encounter an another class identifier, so we didn't have it in symbol-table.
-            var = null;
-            anotherClass = currentToken.getValue();
-        }
-        checkIdentifier();
-        if (isGivenToken(TokenType.symbol, "[")) {        // arr'['exp] = exp2;
-            writer.writePush(var.getKind(), var.getIndex());    // push arr
-            compileArrayExpression();                           // [exp]
-            writer.writeArithmetic(ArithmeticCommand.ADD);      // arr + [exp]
-            if (isGivenToken(TokenType.symbol, "=")) {
-                checkToken(TokenType.symbol, "=");            // =
-                tokensXml.add("<expression>");
-                compileExpression();                                // exp2
-                tokensXml.add("</expression>");
-                writer.writePop(SymbolKind.temp, 0);          // save exp2 to temp 0
-                writer.writePop(SymbolKind.pointer, 1);       // pop pointer 1 (that is arr)
-                writer.writePush(SymbolKind.temp, 0);         // temp 0 to stack
-                writer.writePop(SymbolKind.that, 0);          // arr[exp] = temp 0 (exp2);
-            } else {
-                writer.writePop(SymbolKind.pointer, 1);
-                writer.writePush(SymbolKind.that, 0);
-            }
-        } else if (isGivenToken(TokenType.symbol, "(")) { // print'('a);
-            compileSubroutineCall(null);
-        } else if (isGivenToken(TokenType.symbol, ".")) { // a'.'method();
-            //checkToken(TokenType.symbol, ".");
-            compileSubroutineCall(var);
-        } else {
-            writer.writePush(var.getKind(), var.getIndex());
+    private Ast.Expression compileIdentifier() {
+        String name = compileIdentifierName();
+        if (isGivenToken(TokenType.symbol, "[")) {        // arr'['exp]
+            return new Ast.ArrayRef(name, compileArrayExpression());
+        } else if (isGivenToken(TokenType.symbol, "(") || isGivenToken(TokenType.symbol, ".")) {
+            return compileSubroutineCall(name);
         }
+        return new Ast.VarRef(name);
     }
 
     /**
-     * Var is object which contains this subroutine.
-     * @param var name of object which contain this subroutine call
+     * Parses the rest of a call after its first identifier: print'('a) or a'.'method().
      */
-    private void compileSubroutineCall(Variable var) {
-        boolean isCall = false;
-        String name = "identifier";
-        //checkIdentifier();
+    private Ast.SubroutineCall compileSubroutineCall(String firstName) {
+        String target = null;
+        String name = firstName;
         if (isGivenToken(TokenType.symbol, ".")) {
             checkToken(TokenType.symbol, ".");
-            name = currentToken.getValue();
-            checkIdentifier();
-            isCall = true;
-        }
-        if (var != null) {
-            writer.writePush(var.getKind(), var.getIndex()); // Implicit push of method object.
+            target = firstName;
+            name = compileIdentifierName();
         }
         checkToken(TokenType.symbol, "(");
-        this.paramListIndex = 0;
-        tokensXml.add("<expressionList>");
-        compileExpressionList();
-        tokensXml.add("</expressionList>");
+        List<Ast.Expression> arguments = compileExpressionList();
         checkToken(TokenType.symbol, ")");
-        if (isCall && var != null) {
-            writer.writeCall(var.getType()+"."+name, paramListIndex+1); // +1 cause of implicit push.
-        } else {
-            if (anotherClass != null) {
-                if (!name.equals("identifier")) {
-                    writer.writeCall(anotherClass+"."+name, paramListIndex);
-                } else {
-                    // Method.
-                    writer.writePush(SymbolKind.pointer, 0);
-                    int numberOfArgs = paramListIndex + 1;
-                    int indexLast = writer.vmCode.size()-1;
-                    writer.vmCode.add(writer.vmCode.size() - numberOfArgs,
-                            writer.vmCode.get(indexLast)); // Copy last index before local args.
-                    writer.vmCode.remove(indexLast+1);    // Delete moved element.
-                    writer.writeCall(className+"."+anotherClass, paramListIndex+1);
-                }
-                anotherClass = null;
-            } else {
-                writer.writeCall(name, paramListIndex);
-            }
-        }
-    }
-
-    private void compileExpressionList() {
-        if (isGivenToken(TokenType.symbol, ")")) return;
-        if (tryCompileExpression()) {
-            paramListIndex++;
-            if (isGivenToken(TokenType.symbol, ",")) {
-                checkToken(TokenType.symbol, ",");
-                compileExpressionList();
-            }
-        } else {
-            // This case needs for cleaning xml from starting tags (<expression> <term>).
-        }
+        return new Ast.SubroutineCall(target, name, arguments);
     }
 
-    private boolean tryCompileExpression() {
-        try {
-            tokensXml.add("<expression>");
-            compileExpression();
-            tokensXml.add("</expression>");
-        } catch (RuntimeException e) {
-            return false;
+    /**
+     * An empty list is detected by the FIRST set of a term, so a malformed argument is reported where it fails.
+     */
+    private List<Ast.Expression> compileExpressionList() {
+        List<Ast.Expression> expressions = new ArrayList<>();
+        if (!isTermNext()) return expressions;
+        expressions.add(compileExpression());
+        while (isGivenToken(TokenType.symbol, ",")) {
+            checkToken(TokenType.symbol, ",");
+            expressions.add(compileExpression());
         }
-        return true;
+        return expressions;
     }
 
-    private void compileKeyWordConstant() {
-        switch (currentToken.getValue()) {
-            case "true": {
-                checkToken(TokenType.keyword, "true");
-                writer.writePush(SymbolKind.constant, 1);   // True is -1.
-                writer.writeArithmetic(ArithmeticCommand.NEG);
-            } break;
-            case "false": {
-                checkToken(TokenType.keyword, "false");
-                writer.writePush(SymbolKind.constant, 0);   // False is 0.
-            } break;
-            case "null": {
-                checkToken(TokenType.keyword, "null");
-                writer.writePush(SymbolKind.constant, 0);   // Null is 0.
-            } break;
+    /**
+     * FIRST(term): a constant, a keyword constant, an identifier, '(' or a unary op.
+     */
+    private boolean isTermNext() {
+        switch (currentToken.getType()) {
+            case integerConstant:
+            case stringConstant:
+            case identifier: return true;
+            case keyword: return currentToken == Token.TRUE || currentToken == Token.FALSE
+                    || currentToken == Token.NULL || currentToken == Token.THIS;
+            case symbol: return isGivenToken(TokenType.symbol, "(") || isUnaryOp();
+            default: return false;
+        }
+    }
+
+    private Ast.Expression compileKeyWordConstant() {
+        String keyword = currentToken.getValue();
+        switch (keyword) {
+            case "true":
+            case "false":
+            case "null":
             case "this": {
-                checkToken(TokenType.keyword, "this");
-                writer.writePush(SymbolKind.pointer, 0);    // This is pointer 0.
-            } break;
-            default: checkToken(TokenType.keyword, "true/false/null/this");
+                checkToken(TokenType.keyword, keyword);
+                return new Ast.KeywordConstant(keyword);
+            }
+            default: {
+                checkToken(TokenType.keyword, "true/false/null/this");
+                return null;
+            }
         }
     }
 
-    private boolean isSubroutineNameNext() {
-        return currentToken.getType() == TokenType.identifier
-                && tokenizer.hasNextToken() && tokenizer.getSecondNextToken().getValue().equals("(");
-    }
-
-    private void compileUnaryTerm() {
-        final String symbols = JackTokenizer.getSymbols();
-        int index = symbols.indexOf(currentToken.getValue());
-        compileOp();
-        compileTerm();
-        // Write op after unary expression.
-        writeOp(symbols.charAt(index), true);
-    }
-
     private boolean isUnaryOp() {
         return currentToken.getType() == TokenType.symbol
                 && (currentToken.getValue().equals("-") || currentToken.getValue().equals("~"));
     }
 
     private boolean isOpNext() {
-        //return currentToken.getType() == TokenType.symbol && JackTokenizer.getSymbols().contains(currentToken.getValue());
         if (currentToken.getType() == TokenType.symbol) {
             String opSymbols = "+-*/&|<>=";
             return opSymbols.contains(currentToken.getValue());
@@ -575,36 +371,10 @@ public class CompilationEngine {
         return false;
     }
 
-    private void compileOp() {
-        final String symbols = JackTokenizer.getSymbols();
-        int index = symbols.indexOf(currentToken.getValue());
-        if (currentToken.getType() == TokenType.symbol && index != -1) {
-            checkToken(TokenType.symbol, String.valueOf(symbols.charAt(index)));
-        } else {
-            checkToken(TokenType.symbol, symbols);
-        }
-    }
-
-    private void writeOp(char op, boolean isUnary) {
-        switch (op) {
-            case '+': writer.writeArithmetic(ArithmeticCommand.ADD); break;
-            case '-': {
-                if (isUnary) {
-                    writer.writeArithmetic(ArithmeticCommand.NEG);
-                } else {
-                    writer.writeArithmetic(ArithmeticCommand.SUB);
-                }
-            } break;
-            case '*': writer.writeArithmetic(ArithmeticCommand.MULTIPLY); break;
-            case '/': writer.writeArithmetic(ArithmeticCommand.DIVIDE); break;
-            case '=': writer.writeArithmetic(ArithmeticCommand.EQ); break;
-            case '<': writer.writeArithmetic(ArithmeticCommand.LT); break;
-            case '>': writer.writeArithmetic(ArithmeticCommand.GT); break;
-            case '&': writer.writeArithmetic(ArithmeticCommand.AND); break;
-            case '|': writer.writeArithmetic(ArithmeticCommand.OR); break;
-            case '~': writer.writeArithmetic(ArithmeticCommand.NOT); break;
-            default: throw new IllegalArgumentException("Not implemented op: " + op);
-        }
+    private String compileIdentifierName() {
+        String name = currentToken.getValue();
+        checkIdentifier();
+        return name;
     }
 
     private void checkIdentifier() {
@@ -649,11 +419,7 @@ public class CompilationEngine {
 
     private void advance() {
         if (tokenizer.hasNextToken()) {
-            tokensXml.add(currentToken.toXmlString());  // Adds to xml.
             currentToken = tokenizer.getNextToken();    // Gets the next.
-        } else {
-            tokensXml.add(currentToken.toXmlString());
-            //throw new NullPointerException("Expecting a new token, but given a null");
         }
     }
 }
@@ -0,0 +1,145 @@
+package ru.riverx;
+
+import java.util.Locale;
+
+public class CompilerOptions {
+    private String target;
+    private int jobs;
+    private boolean stream;
+    private boolean cache;
+    private boolean watch;
+    private boolean emitVm;
+    private boolean emitXml;
+    private boolean emitAsm;
+    private int optimizationLevel;
+    private boolean stats;
+    private String statsJson;
+    private boolean deadCodeElimination;
+    private int inlineThreshold;
+    private StringPool.Scope stringPool;
+    private boolean shortCircuit;
+
+    public CompilerOptions() {
+        this.jobs = 1;
+        this.emitVm = true;
+        this.emitXml = true;
+    }
+
+    /**
+     * Parses command line arguments. Options go first, the last plain argument is the file or folder to compile.
+     * @param args command line arguments
+     * @return parsed options
+     */
+    public static CompilerOptions parse(String[] args) {
+        CompilerOptions options = new CompilerOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--jobs": options.jobs = parsePositive(arg, valueOf(args, ++i)); break;
+                case "--stream": options.stream = true; break;
+                case "--cache": options.cache = true; break;
+                case "--watch": options.watch = true; break;
+                case "--emit": options.parseEmit(valueOf(args, ++i)); break;
+                case "-O0": options.optimizationLevel = 0; break;
+                case "-O1": options.optimizationLevel = 1; break;
+                case "-O2": options.optimizationLevel = 2; break;
+                case "--stats": options.stats = true; break;
+                case "--stats-json": options.statsJson = valueOf(args, ++i); break;
+                case "--dce": options.deadCodeElimination = true; break;
+                case "--inline": options.inlineThreshold = parsePositive(arg, valueOf(args, ++i)); break;
+                case "--strings": options.parseStrings(valueOf(args, ++i)); break;
+                case "--short-circuit": options.shortCircuit = true; break;
+                default: {
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                    options.target = arg;
+                }
+            }
+        }
+        boolean vmPasses = options.deadCodeElimination || options.inlineThreshold > 0 || options.stringPool != null;
+        if (vmPasses && !options.emitVm && !options.emitAsm) {
+            throw new IllegalArgumentException(
+                    "Options --dce, --inline and --strings need VM code, they can't be used with --emit xml");
+        }
+        return options;
+    }
+
+    private void parseEmit(String value) {
+        switch (value) {
+            case "vm": emitVm = true; emitXml = false; emitAsm = false; break;
+            case "xml": emitVm = false; emitXml = true; emitAsm = false; break;
+            case "both": emitVm = true; emitXml = true; emitAsm = false; break;
+            case "asm": emitVm = false; emitXml = false; emitAsm = true; break;
+            default: throw new IllegalArgumentException("Option --emit expects vm, xml, both or asm, given: " + value);
+        }
+    }
+
+    private void parseStrings(String value) {
+        switch (value) {
+            case "class": stringPool = StringPool.Scope.CLASS; break;
+            case "program": stringPool = StringPool.Scope.PROGRAM; break;
+            default: throw new IllegalArgumentException("Option --strings expects class or program, given: " + value);
+        }
+    }
+
+    private static String valueOf(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for option: " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static int parsePositive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) return number;
+        } catch (NumberFormatException ignored) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Option " + option + " expects a positive number, given: " + value);
+    }
+
+    public String getTarget() { return target; }
+    public int getJobs() { return jobs; }
+    public boolean isStream() { return stream; }
+    public boolean isCache() { return cache; }
+    public boolean isWatch() { return watch; }
+    public boolean isEmitVm() { return emitVm; }
+    public boolean isEmitXml() { return emitXml; }
+    public boolean isEmitAsm() { return emitAsm; }
+    public int getOptimizationLevel() { return optimizationLevel; }
+    public boolean isStats() { return stats; }
+    public String getStatsJson() { return statsJson; }
+    public boolean isDeadCodeElimination() { return deadCodeElimination; }
+    public int getInlineThreshold() { return inlineThreshold; }
+
+    /**
+     * @return scope of the string literal pool or null if literals are built on every use
+     */
+    public StringPool.Scope getStringPool() { return stringPool; }
+    public boolean isShortCircuit() { return shortCircuit; }
+
+    /**
+     * @return true if the VM code of the whole program is transformed before it is written, for --dce, --inline,
+     * the program string pool and the assembly output, which is one file for the program
+     */
+    public boolean isWholeProgram() {
+        return deadCodeElimination || inlineThreshold > 0 || stringPool == StringPool.Scope.PROGRAM || emitAsm;
+    }
+
+    /**
+     * @return true if phase metrics are collected, for the --stats table or the --stats-json file
+     */
+    public boolean isCollectStats() { return stats || statsJson != null; }
+
+    /**
+     * @return description of every option which changes the generated files, part of the build cache key
+     */
+    public String fingerprint() {
+        return (emitXml ? "xml" : "") + (emitXml && emitVm ? "+" : "") + (emitVm ? "vm" : "") + (emitAsm ? "asm" : "")
+                + "-O" + optimizationLevel
+                + (stringPool != null ? "-strings=" + stringPool.name().toLowerCase(Locale.ROOT) : "")
+                + (shortCircuit ? "-short-circuit" : "");
+    }
+}
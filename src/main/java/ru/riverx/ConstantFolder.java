@@ -0,0 +1,238 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates constant subexpressions with 16-bit wraparound, drops identities (x + 0, x - 0, x | 0, x * 1, x / 1)
+ * and turns multiplication by a power of two into a chain of additions instead of a Math.multiply call.
+ * Division by a power of two has no cheaper VM form, because the VM has no shifts.
+ * <p>
+ * The pass follows the stack of each straight piece of code, remembering for every value where its code
+ * starts and whether it is a known constant, so operands can be cut out of the code again.
+ * Doubling a value which is not a single push goes through temp 1; the compiler itself only uses temp 0.
+ */
+public class ConstantFolder extends FunctionPass {
+    private static final int TEMP = 1;
+    private int foldedOperations;
+    private int reducedCalls;
+
+    public ConstantFolder(VMOutput output) {
+        super(output);
+    }
+
+    private static final class Value {
+        final int start;        // First instruction of the value's code, -1 if it is not known.
+        final Integer constant; // Null if the value is only known at run time.
+
+        Value(int start, Integer constant) {
+            this.start = start;
+            this.constant = constant;
+        }
+    }
+
+    @Override
+    public String getName() { return "constant folding"; }
+
+    @Override
+    public String getReport() {
+        return "constant folding simplified " + foldedOperations + " operations and replaced " + reducedCalls
+                + " Math calls, " + getInstructionsIn() + " -> " + getInstructionsOut() + " VM instructions";
+    }
+
+    @Override
+    protected List<VMInstruction> optimize(List<VMInstruction> function) {
+        List<VMInstruction> code = new ArrayList<>(function.size());
+        List<Value> stack = new ArrayList<>();
+        for (VMInstruction instruction : function) {
+            switch (instruction.getOp()) {
+                case PUSH: {
+                    Integer constant = instruction.getSegment() == Segment.constant ? instruction.getNumber() : null;
+                    stack.add(new Value(code.size(), constant));
+                    code.add(instruction);
+                } break;
+                case POP: {
+                    pop(stack);
+                    code.add(instruction);
+                    // The stored value's code now lies inside the code of the values below, which can't be cut anymore.
+                    for (int i = 0; i < stack.size(); i++) {
+                        stack.set(i, new Value(-1, null));
+                    }
+                } break;
+                case ARITHMETIC: {
+                    ArithmeticCommand command = instruction.getCommand();
+                    if (command == ArithmeticCommand.NEG || command == ArithmeticCommand.NOT) {
+                        unary(code, stack, instruction);
+                    } else {
+                        binary(code, stack, command, instruction);
+                    }
+                } break;
+                case CALL: {
+                    if (instruction.getNumber() == 2 && instruction.getName().equals("Math.multiply")) {
+                        binary(code, stack, ArithmeticCommand.MULTIPLY, instruction);
+                    } else if (instruction.getNumber() == 2 && instruction.getName().equals("Math.divide")) {
+                        binary(code, stack, ArithmeticCommand.DIVIDE, instruction);
+                    } else {
+                        int start = code.size();
+                        for (int i = 0; i < instruction.getNumber(); i++) {
+                            Value argument = pop(stack);
+                            start = argument != null ? argument.start : -1;
+                        }
+                        stack.add(new Value(start, null));
+                        code.add(instruction);
+                    }
+                } break;
+                default: {
+                    // Labels, jumps, function and return end a straight piece of code.
+                    stack.clear();
+                    code.add(instruction);
+                }
+            }
+        }
+        return code;
+    }
+
+    private static Value pop(List<Value> stack) {
+        return stack.isEmpty() ? null : stack.remove(stack.size() - 1);
+    }
+
+    private void unary(List<VMInstruction> code, List<Value> stack, VMInstruction instruction) {
+        Value operand = pop(stack);
+        if (operand == null || operand.constant == null) {
+            stack.add(new Value(operand != null ? operand.start : -1, null));
+            code.add(instruction);
+            return;
+        }
+        int value = instruction.getCommand() == ArithmeticCommand.NEG ? (short) -operand.constant : (short) ~operand.constant;
+        List<VMInstruction> folded = VMInstruction.pushValue(value);
+        if (folded.size() < code.size() - operand.start + 1) {
+            cut(code, operand.start, code.size());
+            code.addAll(folded);
+            foldedOperations++;
+        } else {
+            code.add(instruction); // 'push constant 1, neg' for true is already as short as it gets.
+        }
+        stack.add(new Value(operand.start, value));
+    }
+
+    private void binary(List<VMInstruction> code, List<Value> stack, ArithmeticCommand command, VMInstruction instruction) {
+        Value right = pop(stack);
+        Value left = pop(stack);
+        if (left == null || right == null || left.start < 0 || right.start < 0) {
+            stack.add(new Value(left != null ? left.start : -1, null));
+            code.add(instruction);
+            return;
+        }
+        if (left.constant != null && right.constant != null) {
+            Integer value = evaluate(command, left.constant, right.constant);
+            if (value != null) {
+                cut(code, left.start, code.size());
+                code.addAll(VMInstruction.pushValue(value));
+                stack.add(new Value(left.start, value));
+                foldedOperations++;
+                if (instruction.is(VMInstruction.Op.CALL)) reducedCalls++;
+                return;
+            }
+        }
+        if (right.constant != null && isRightIdentity(command, right.constant)) {
+            cut(code, right.start, code.size()); // x + 0
+            stack.add(new Value(left.start, null));
+            foldedOperations++;
+            if (instruction.is(VMInstruction.Op.CALL)) reducedCalls++;
+            return;
+        }
+        if (left.constant != null && isLeftIdentity(command, left.constant)) {
+            cut(code, left.start, right.start); // 0 + x
+            stack.add(new Value(left.start, null));
+            foldedOperations++;
+            if (instruction.is(VMInstruction.Op.CALL)) reducedCalls++;
+            return;
+        }
+        if (command == ArithmeticCommand.MULTIPLY) {
+            if (right.constant != null && powerOfTwo(right.constant) > 0) {
+                cut(code, right.start, code.size());
+                addDoublings(code, left.start, powerOfTwo(right.constant));
+                stack.add(new Value(left.start, null));
+                reducedCalls++;
+                return;
+            }
+            if (left.constant != null && powerOfTwo(left.constant) > 0) {
+                int times = powerOfTwo(left.constant);
+                cut(code, left.start, right.start);
+                addDoublings(code, left.start, times);
+                stack.add(new Value(left.start, null));
+                reducedCalls++;
+                return;
+            }
+        }
+        stack.add(new Value(left.start, null));
+        code.add(instruction);
+    }
+
+    /**
+     * @return folded 16-bit value or null if it has to be computed at run time (division by zero)
+     */
+    private static Integer evaluate(ArithmeticCommand command, int left, int right) {
+        switch (command) {
+            case ADD: return (int) (short) (left + right);
+            case SUB: return (int) (short) (left - right);
+            case MULTIPLY: return (int) (short) (left * right);
+            case DIVIDE: return right == 0 ? null : (int) (short) (left / right);
+            case AND: return (int) (short) (left & right);
+            case OR: return (int) (short) (left | right);
+            case EQ: return left == right ? -1 : 0;
+            case GT: return left > right ? -1 : 0;
+            case LT: return left < right ? -1 : 0;
+            default: return null;
+        }
+    }
+
+    private static boolean isRightIdentity(ArithmeticCommand command, int value) {
+        switch (command) {
+            case ADD:
+            case SUB:
+            case OR: return value == 0;
+            case MULTIPLY:
+            case DIVIDE: return value == 1;
+            default: return false;
+        }
+    }
+
+    private static boolean isLeftIdentity(ArithmeticCommand command, int value) {
+        switch (command) {
+            case ADD:
+            case OR: return value == 0;
+            case MULTIPLY: return value == 1;
+            default: return false;
+        }
+    }
+
+    /**
+     * @return k if the value is 2^k with k between 1 and 14, otherwise 0
+     */
+    private static int powerOfTwo(int value) {
+        if (value < 2 || value > Short.MAX_VALUE || Integer.bitCount(value) != 1) return 0;
+        return Integer.numberOfTrailingZeros(value);
+    }
+
+    /**
+     * Doubles the value computed by code[start..] the given number of times. A single push is simply repeated
+     * for the first doubling, anything else is duplicated through temp.
+     */
+    private static void addDoublings(List<VMInstruction> code, int start, int times) {
+        for (int i = 0; i < times; i++) {
+            if (i == 0 && code.size() - start == 1 && code.get(start).is(VMInstruction.Op.PUSH)) {
+                code.add(code.get(start));
+            } else {
+                code.add(VMInstruction.pop(Segment.temp, TEMP));
+                code.add(VMInstruction.push(Segment.temp, TEMP));
+                code.add(VMInstruction.push(Segment.temp, TEMP));
+            }
+            code.add(VMInstruction.arithmetic(ArithmeticCommand.ADD));
+        }
+    }
+
+    private static void cut(List<VMInstruction> code, int from, int to) {
+        code.subList(from, to).clear();
+    }
+}
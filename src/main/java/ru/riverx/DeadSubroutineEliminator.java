@@ -0,0 +1,107 @@
+package ru.riverx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Whole-program pass over the VM code of every file: keeps the functions which are reachable through call
+ * instructions from Main.main and drops the others. Every function of an OS class is a root as well, because
+ * the VM starts in Sys.init and the OS classes call each other.
+ */
+public class DeadSubroutineEliminator {
+    static final Set<String> OS_CLASSES = new HashSet<>(Arrays.asList(
+            "Array", "Keyboard", "Math", "Memory", "Output", "Screen", "String", "Sys"));
+    private static final String ENTRY = "Main.main";
+    private final List<String> removedFunctions = new ArrayList<>();
+    private int functionsIn;
+    private int instructionsIn;
+    private int instructionsRemoved;
+    private boolean hasEntry;
+
+    /**
+     * @param program the code of every file of the program, in compilation order
+     * @return the same files with the unreachable functions left out
+     */
+    public Map<String, List<VMInstruction>> eliminate(Map<String, List<VMInstruction>> program) {
+        Map<String, List<VMInstruction>> functions = new HashMap<>();
+        for (List<VMInstruction> code : program.values()) {
+            instructionsIn += code.size();
+            String current = null;
+            for (VMInstruction instruction : code) {
+                if (instruction.is(VMInstruction.Op.FUNCTION)) {
+                    current = instruction.getName();
+                    functions.put(current, new ArrayList<>());
+                    functionsIn++;
+                } else if (current != null && instruction.is(VMInstruction.Op.CALL)) {
+                    functions.get(current).add(instruction);
+                }
+            }
+        }
+        hasEntry = functions.containsKey(ENTRY);
+        if (!hasEntry) {
+            return program; // A library without an entry point, every function may be used.
+        }
+        Set<String> reachable = reachableFrom(functions);
+        Map<String, List<VMInstruction>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<VMInstruction>> file : program.entrySet()) {
+            List<VMInstruction> kept = new ArrayList<>();
+            boolean keep = true; // Code before the first function is kept.
+            for (VMInstruction instruction : file.getValue()) {
+                if (instruction.is(VMInstruction.Op.FUNCTION)) {
+                    keep = reachable.contains(instruction.getName());
+                    if (!keep) removedFunctions.add(instruction.getName());
+                }
+                if (keep) kept.add(instruction); else instructionsRemoved++;
+            }
+            result.put(file.getKey(), kept);
+        }
+        return result;
+    }
+
+    /**
+     * @param functions calls made by every function of the program
+     */
+    private static Set<String> reachableFrom(Map<String, List<VMInstruction>> functions) {
+        Set<String> reachable = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(ENTRY);
+        for (String name : functions.keySet()) {
+            int dot = name.indexOf('.');
+            if (dot > 0 && OS_CLASSES.contains(name.substring(0, dot))) {
+                pending.add(name);
+            }
+        }
+        while (!pending.isEmpty()) {
+            String name = pending.poll();
+            List<VMInstruction> calls = functions.get(name);
+            if (calls == null || !reachable.add(name)) continue; // Outside the program (the OS) or already visited.
+            for (VMInstruction call : calls) {
+                pending.add(call.getName());
+            }
+        }
+        return reachable;
+    }
+
+    public List<String> getRemovedFunctions() { return removedFunctions; }
+
+    public String getReport() {
+        if (!hasEntry) {
+            return "dead code: no " + ENTRY + " in the program, nothing removed";
+        }
+        StringBuilder sb = new StringBuilder("dead code: removed ").append(removedFunctions.size()).append(" of ")
+                .append(functionsIn).append(" functions and ").append(instructionsRemoved).append(" of ")
+                .append(instructionsIn).append(" VM instructions");
+        if (!removedFunctions.isEmpty()) {
+            sb.append(": ").append(String.join(", ", removedFunctions));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package ru.riverx;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches a folder and hands the .jack files which were created or modified to the compiler in batches.
+ * Editors usually fire several events for one save, so events are collected until the folder
+ * stays quiet for {@link #DEBOUNCE_MILLIS}.
+ */
+public class FolderWatcher {
+    private static final long DEBOUNCE_MILLIS = 200;
+    private final String folderName;
+    private final Consumer<List<String>> compiler;
+
+    /**
+     * @param folderName folder to watch, changed files are passed on as folderName + "/" + file name
+     * @param compiler compiles one batch of changed files
+     */
+    public FolderWatcher(String folderName, Consumer<List<String>> compiler) {
+        this.folderName = folderName;
+        this.compiler = compiler;
+    }
+
+    /**
+     * Blocks until the thread is interrupted or the folder is removed.
+     */
+    public void run() throws IOException {
+        Path folder = Paths.get(folderName);
+        try (WatchService service = folder.getFileSystem().newWatchService()) {
+            folder.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            System.out.println("Watching " + folderName + " for changes, press Ctrl+C to stop");
+            while (true) {
+                WatchKey key = service.take();
+                Set<String> changed = new TreeSet<>();
+                while (key != null) {
+                    collectChanges(key, changed);
+                    if (!key.reset()) {
+                        System.out.println("Stopped watching, " + folderName + " is not available anymore");
+                        return;
+                    }
+                    key = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                changed.removeIf(filename -> !Files.isRegularFile(Paths.get(filename)));
+                if (!changed.isEmpty()) {
+                    long start = System.nanoTime();
+                    compiler.accept(new ArrayList<>(changed));
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    System.out.println("Recompiled " + changed.size() + " file(s) in " + millis + " ms: " + changed);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void collectChanges(WatchKey key, Set<String> changed) throws IOException {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, so every source may have changed.
+                try (DirectoryStream<Path> sources = Files.newDirectoryStream(Paths.get(folderName), "*.jack")) {
+                    for (Path source : sources) {
+                        changed.add(folderName + "/" + source.getFileName());
+                    }
+                }
+                continue;
+            }
+            String name = event.context().toString();
+            if (name.endsWith(".jack")) {
+                changed.add(folderName + "/" + name);
+            }
+        }
+    }
+}
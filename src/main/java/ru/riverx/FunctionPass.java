@@ -0,0 +1,94 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optimization stage between {@link CompilationEngine} and the real output. The code of each function is
+ * collected, rewritten by {@link #optimize} and then passed on, so stages can be chained.
+ * Call {@link #flush()} after the class is compiled to pass on the last function.
+ */
+public abstract class FunctionPass implements VMOutput {
+    private final VMOutput output;
+    private final List<VMInstruction> function;
+    private int instructionsIn;
+    private int instructionsOut;
+
+    protected FunctionPass(VMOutput output) {
+        this.output = output;
+        this.function = new ArrayList<>();
+    }
+
+    /**
+     * @param function code of one function, starting with its function command
+     * @return rewritten code
+     */
+    protected abstract List<VMInstruction> optimize(List<VMInstruction> function);
+
+    /**
+     * @return name of the stage for reports
+     */
+    public abstract String getName();
+
+    @Override
+    public void writePush(Segment segment, int index) { function.add(VMInstruction.push(segment, index)); }
+
+    @Override
+    public void writePop(Segment segment, int index) { function.add(VMInstruction.pop(segment, index)); }
+
+    @Override
+    public void writeArithmetic(ArithmeticCommand command) { function.add(VMInstruction.arithmetic(command)); }
+
+    @Override
+    public void writeLabel(String label) { function.add(VMInstruction.label(label)); }
+
+    @Override
+    public void writeGoto(String label) { function.add(VMInstruction.gotoLabel(label)); }
+
+    @Override
+    public void writeIf(String label) { function.add(VMInstruction.ifGoto(label)); }
+
+    @Override
+    public void writeCall(String name, int nArgs) { function.add(VMInstruction.call(name, nArgs)); }
+
+    @Override
+    public void writeFunction(String name, int nLocals) {
+        flushFunction();
+        function.add(VMInstruction.function(name, nLocals));
+    }
+
+    @Override
+    public void writeReturn() { function.add(VMInstruction.ret()); }
+
+    /**
+     * Passes on the last function and flushes the next stage if it is a pass too.
+     */
+    public void flush() {
+        flushFunction();
+        if (output instanceof FunctionPass) {
+            ((FunctionPass) output).flush();
+        }
+    }
+
+    private void flushFunction() {
+        if (function.isEmpty()) return;
+        instructionsIn += function.size();
+        List<VMInstruction> code = optimize(function);
+        instructionsOut += code.size();
+        for (VMInstruction instruction : code) {
+            instruction.writeTo(output);
+        }
+        function.clear();
+    }
+
+    public int getInstructionsIn() { return instructionsIn; }
+
+    public int getInstructionsOut() { return instructionsOut; }
+
+    /**
+     * @return description of the work done by the stage, for example how many instructions it removed
+     */
+    public String getReport() {
+        return getName() + " " + instructionsIn + " -> " + instructionsOut + " VM instructions";
+    }
+}
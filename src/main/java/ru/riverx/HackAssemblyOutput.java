@@ -0,0 +1,470 @@
+package ru.riverx;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Translates VM commands straight into Hack assembly, so a build goes from Jack to .asm without VM text.
+ * <p>
+ * Call, return and the comparisons jump to routines which are written once at the end of the file, so a call
+ * site is a few instructions instead of the whole frame handling. Push and pop use the shortest sequence for
+ * their segment. All files of a program go into one output, {@link #setFileName(String)} names their statics.
+ * <p>
+ * With the stack top cached the value on top of the stack lives in D instead of RAM, so a run like
+ * push, push, add, pop moves one value through memory instead of four. The value is written back to the stack
+ * before labels, jumps and calls, where all paths have to agree on the stack. A condition is tested in D
+ * and a return passes its value in D, so the code after a call starts with the result cached. A constant or
+ * a static, temp or pointer pushed on top of a cached value is held back, so an operation on both reads it
+ * straight through A, like D=D+A.
+ */
+public class HackAssemblyOutput implements VMOutput {
+    private static final String CALL = "$$call";
+    private static final String RETURN = "$$return";
+    private static final String HALT = "$$halt";
+    private static final int TEMP_BASE = 5;
+    private static final int MAX_UNROLLED = 4; // Longest offset or local count which is written without a loop.
+
+    private enum Routine { CALL, RETURN, EQ, GT, LT }
+
+    private final Writer out;
+    private final boolean cacheTop;
+    private final Set<Routine> usedRoutines = EnumSet.noneOf(Routine.class);
+    private String fileName = "";
+    private String function = "";
+    private int labelCount;
+    private long instructionCount;
+    private boolean cached; // The top of the stack is in D.
+    private String pending; // Address of a pushed value which is not loaded yet, on top of the cached one.
+    private boolean pendingInMemory; // The value is at the address rather than the address itself.
+
+    public HackAssemblyOutput(Writer out) {
+        this(out, false);
+    }
+
+    /**
+     * @param cacheTop keep the top of the stack in D
+     */
+    public HackAssemblyOutput(Writer out, boolean cacheTop) {
+        this.out = out;
+        this.cacheTop = cacheTop;
+    }
+
+    /**
+     * Statics of the following commands belong to the given file, usually the class name.
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Sets up the stack and calls the entry function, Sys.init with the OS or Main.main without it.
+     * The program halts in a loop if the entry function returns.
+     */
+    public void writeBootstrap(String entry) {
+        flushPending();
+        function = "$$bootstrap";
+        write("@256", "D=A", "@SP", "M=D");
+        writeCall(entry, 0);
+        cached = false;
+        label(HALT);
+        write("@" + HALT, "0;JMP");
+    }
+
+    @Override
+    public void writePush(Segment segment, int index) {
+        if (cacheTop) {
+            flushPending();
+            if (cached && segment == Segment.constant && index > 1) {
+                pending = String.valueOf(index);
+                pendingInMemory = false;
+            } else if (cached && (segment == Segment.STATIC || segment == Segment.pointer || segment == Segment.temp)) {
+                pending = address(segment, index);
+                pendingInMemory = true;
+            } else {
+                spill();
+                load(segment, index);
+                cached = true;
+            }
+        } else if (segment == Segment.constant && index >= -1 && index <= 1) {
+            write("@SP", "AM=M+1", "A=A-1", "M=" + index);
+        } else {
+            load(segment, index);
+            pushD();
+        }
+    }
+
+    /**
+     * Loads the value of the segment entry into D.
+     */
+    private void load(Segment segment, int index) {
+        switch (segment) {
+            case constant: {
+                if (index >= -1 && index <= 1) write("D=" + index);
+                else if (index >= 0) write("@" + index, "D=A");
+                else write("@" + -index, "D=-A");
+            } break;
+            case STATIC:
+            case pointer:
+            case temp: write("@" + address(segment, index), "D=M"); break;
+            default: {
+                write("@" + base(segment));
+                if (index == 0) write("A=M");
+                else if (index == 1) write("A=M+1");
+                else write("D=M", "@" + index, "A=D+A");
+                write("D=M");
+            }
+        }
+    }
+
+    @Override
+    public void writePop(Segment segment, int index) {
+        if (segment == Segment.constant) {
+            throw new IllegalArgumentException("Can't pop into the constant segment");
+        }
+        if (cacheTop) {
+            flushPending();
+            if (!cached) popD();
+            store(segment, index);
+            cached = false;
+        } else if (segment == Segment.STATIC || segment == Segment.pointer || segment == Segment.temp
+                || index <= MAX_UNROLLED) {
+            popD();
+            store(segment, index);
+        } else {
+            write("@" + base(segment), "D=M", "@" + index, "D=D+A", "@R13", "M=D");
+            write("@SP", "AM=M-1", "D=M", "@R13", "A=M", "M=D");
+        }
+    }
+
+    /**
+     * Stores D into the segment entry.
+     */
+    private void store(Segment segment, int index) {
+        switch (segment) {
+            case STATIC:
+            case pointer:
+            case temp: write("@" + address(segment, index), "M=D"); break;
+            default: {
+                if (index <= MAX_UNROLLED) {
+                    write("@" + base(segment), "A=M");
+                    for (int i = 0; i < index; i++) write("A=A+1");
+                    write("M=D");
+                } else {
+                    write("@R13", "M=D", "@" + base(segment), "D=M", "@" + index, "D=D+A", "@R14", "M=D");
+                    write("@R13", "D=M", "@R14", "A=M", "M=D");
+                }
+            }
+        }
+    }
+
+    private void pushD() {
+        write("@SP", "AM=M+1", "A=A-1", "M=D");
+    }
+
+    private void popD() {
+        write("@SP", "AM=M-1", "D=M");
+    }
+
+    /**
+     * Loads the held back value, the value under it goes to the stack.
+     */
+    private void flushPending() {
+        if (pending != null) {
+            pushD();
+            write("@" + pending, pendingInMemory ? "D=M" : "D=A");
+            pending = null;
+        }
+    }
+
+    /**
+     * Writes the cached top back to the stack.
+     */
+    private void spill() {
+        if (cached) {
+            pushD();
+            cached = false;
+        }
+    }
+
+    private String address(Segment segment, int index) {
+        switch (segment) {
+            case STATIC: return fileName + "." + index;
+            case pointer: return index == 0 ? "THIS" : "THAT";
+            case temp: return "R" + (TEMP_BASE + index);
+            default: throw new IllegalArgumentException("Segment has no fixed address: " + segment.getVmName());
+        }
+    }
+
+    private static String base(Segment segment) {
+        switch (segment) {
+            case local: return "LCL";
+            case argument: return "ARG";
+            case THIS: return "THIS";
+            case that: return "THAT";
+            default: throw new IllegalArgumentException("Segment has no base pointer: " + segment.getVmName());
+        }
+    }
+
+    @Override
+    public void writeArithmetic(ArithmeticCommand command) {
+        if (cacheTop) {
+            writeCachedArithmetic(command);
+            return;
+        }
+        switch (command) {
+            case ADD: binary("M=D+M"); break;
+            case SUB: binary("M=M-D"); break;
+            case AND: binary("M=D&M"); break;
+            case OR: binary("M=D|M"); break;
+            case NEG: write("@SP", "A=M-1", "M=-M"); break;
+            case NOT: write("@SP", "A=M-1", "M=!M"); break;
+            case EQ: compare(Routine.EQ); break;
+            case GT: compare(Routine.GT); break;
+            case LT: compare(Routine.LT); break;
+            default: throw new IllegalArgumentException("No Hack instruction for " + command.getVmName()
+                    + ", it is an OS call");
+        }
+    }
+
+    private void binary(String operation) {
+        write("@SP", "AM=M-1", "D=M", "A=A-1", operation);
+    }
+
+    private void compare(Routine routine) {
+        usedRoutines.add(routine);
+        String returnLabel = nextLabel("ret");
+        write("@" + returnLabel, "D=A", "@" + routineLabel(routine), "0;JMP");
+        label(returnLabel);
+    }
+
+    /**
+     * The second operand is in D and the result stays there; a comparison is short enough to be written inline.
+     */
+    private void writeCachedArithmetic(ArithmeticCommand command) {
+        if (pending != null && command != ArithmeticCommand.NEG && command != ArithmeticCommand.NOT) {
+            writePendingArithmetic(command);
+            return;
+        }
+        flushPending();
+        if (!cached && (command == ArithmeticCommand.NEG || command == ArithmeticCommand.NOT)) {
+            write("@SP", "A=M-1", command == ArithmeticCommand.NEG ? "M=-M" : "M=!M");
+            return;
+        }
+        if (!cached) popD();
+        switch (command) {
+            case ADD: write("@SP", "AM=M-1", "D=D+M"); break;
+            case SUB: write("@SP", "AM=M-1", "D=M-D"); break;
+            case AND: write("@SP", "AM=M-1", "D=D&M"); break;
+            case OR: write("@SP", "AM=M-1", "D=D|M"); break;
+            case NEG: write("D=-D"); break;
+            case NOT: write("D=!D"); break;
+            case EQ:
+            case GT:
+            case LT: {
+                write("@SP", "AM=M-1", "D=M-D");
+                compareD(command);
+            } break;
+            default: throw new IllegalArgumentException("No Hack instruction for " + command.getVmName()
+                    + ", it is an OS call");
+        }
+        cached = true;
+    }
+
+    /**
+     * The first operand is in D, the second one is the held back value.
+     */
+    private void writePendingArithmetic(ArithmeticCommand command) {
+        String operand = pendingInMemory ? "M" : "A";
+        write("@" + pending);
+        pending = null;
+        switch (command) {
+            case ADD: write("D=D+" + operand); break;
+            case SUB: write("D=D-" + operand); break;
+            case AND: write("D=D&" + operand); break;
+            case OR: write("D=D|" + operand); break;
+            case EQ:
+            case GT:
+            case LT: {
+                write("D=D-" + operand);
+                compareD(command);
+            } break;
+            default: throw new IllegalArgumentException("No Hack instruction for " + command.getVmName()
+                    + ", it is an OS call");
+        }
+    }
+
+    /**
+     * Replaces the difference of the operands in D with the result of the comparison.
+     */
+    private void compareD(ArithmeticCommand command) {
+        String isTrue = nextLabel("true");
+        String end = nextLabel("end");
+        write("@" + isTrue, "D;J" + command.name(), "D=0", "@" + end, "0;JMP");
+        label(isTrue);
+        write("D=-1");
+        label(end);
+    }
+
+    @Override
+    public void writeLabel(String label) {
+        flushPending();
+        spill();
+        label(function + "$" + label);
+    }
+
+    @Override
+    public void writeGoto(String label) {
+        flushPending();
+        spill();
+        write("@" + function + "$" + label, "0;JMP");
+    }
+
+    @Override
+    public void writeIf(String label) {
+        flushPending();
+        if (!cached) popD();
+        write("@" + function + "$" + label, "D;JNE");
+        cached = false;
+    }
+
+    /**
+     * The call site passes the argument count in R13 and the callee in R14, the routine pushes the frame.
+     */
+    @Override
+    public void writeCall(String name, int nArgs) {
+        flushPending();
+        spill();
+        usedRoutines.add(Routine.CALL);
+        String returnLabel = nextLabel("ret");
+        if (nArgs <= 1) write("@R13", "M=" + nArgs);
+        else write("@" + nArgs, "D=A", "@R13", "M=D");
+        write("@" + name, "D=A", "@R14", "M=D", "@" + returnLabel, "D=A", "@" + CALL, "0;JMP");
+        label(returnLabel);
+        cached = cacheTop; // The return value comes in D.
+    }
+
+    @Override
+    public void writeFunction(String name, int nLocals) {
+        flushPending();
+        function = name;
+        labelCount = 0;
+        cached = false;
+        label(name);
+        if (nLocals <= MAX_UNROLLED) {
+            for (int i = 0; i < nLocals; i++) write("@SP", "AM=M+1", "A=A-1", "M=0");
+        } else {
+            write("@" + nLocals, "D=A");
+            label(name + "$locals");
+            write("@SP", "AM=M+1", "A=A-1", "M=0", "@" + name + "$locals", "D=D-1;JGT");
+        }
+    }
+
+    @Override
+    public void writeReturn() {
+        flushPending();
+        if (cacheTop && !cached) popD();
+        cached = false;
+        usedRoutines.add(Routine.RETURN);
+        write("@" + RETURN, "0;JMP");
+    }
+
+    private String nextLabel(String kind) {
+        return function + "$" + kind + "." + labelCount++;
+    }
+
+    private static String routineLabel(Routine routine) {
+        return "$$" + routine.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Writes the shared routines the code jumped to.
+     */
+    public void finish() {
+        flushPending();
+        if (usedRoutines.contains(Routine.CALL)) writeCallRoutine();
+        if (usedRoutines.contains(Routine.RETURN)) writeReturnRoutine();
+        for (Routine routine : new Routine[] {Routine.EQ, Routine.GT, Routine.LT}) {
+            if (usedRoutines.contains(routine)) writeCompareRoutine(routine);
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * D is the return address, R13 the argument count and R14 the callee.
+     */
+    private void writeCallRoutine() {
+        label(CALL);
+        write("@SP", "AM=M+1", "A=A-1", "M=D");
+        for (String pointer : new String[] {"LCL", "ARG", "THIS", "THAT"}) {
+            write("@" + pointer, "D=M", "@SP", "AM=M+1", "A=A-1", "M=D");
+        }
+        write("@R13", "D=M", "@5", "D=D+A", "@SP", "D=M-D", "@ARG", "M=D");
+        write("@SP", "D=M", "@LCL", "M=D");
+        write("@R14", "A=M", "0;JMP");
+    }
+
+    /**
+     * The return address is read before the return value is stored, with no arguments both share a word.
+     * With the stack top cached the value comes and goes in D and the stack ends where the arguments began.
+     */
+    private void writeReturnRoutine() {
+        label(RETURN);
+        if (cacheTop) write("@R14", "M=D");
+        write("@5", "D=A", "@LCL", "A=M-D", "D=M", "@R13", "M=D");
+        if (cacheTop) write("@ARG", "D=M", "@SP", "M=D");
+        else write("@SP", "AM=M-1", "D=M", "@ARG", "A=M", "M=D", "D=A+1", "@SP", "M=D");
+        for (String pointer : new String[] {"THAT", "THIS", "ARG"}) {
+            write("@LCL", "AM=M-1", "D=M", "@" + pointer, "M=D");
+        }
+        write("@LCL", "A=M-1", "D=M", "@LCL", "M=D");
+        if (cacheTop) write("@R14", "D=M");
+        write("@R13", "A=M", "0;JMP");
+    }
+
+    /**
+     * D is the return address. The top two values are replaced by true (-1) or false (0).
+     */
+    private void writeCompareRoutine(Routine routine) {
+        String name = routineLabel(routine);
+        label(name);
+        write("@R15", "M=D", "@SP", "AM=M-1", "D=M", "A=A-1", "D=M-D", "M=-1", "@" + name + ".true",
+                "D;J" + routine.name(), "@SP", "A=M-1", "M=0");
+        label(name + ".true");
+        write("@R15", "A=M", "0;JMP");
+    }
+
+    /**
+     * @return number of instructions written so far, labels are not instructions
+     */
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    private void label(String label) {
+        line("(" + label + ")");
+    }
+
+    private void write(String... instructions) {
+        for (String instruction : instructions) {
+            line(instruction);
+            instructionCount++;
+        }
+    }
+
+    private void line(String line) {
+        try {
+            out.write(line);
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
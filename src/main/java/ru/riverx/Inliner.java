@@ -0,0 +1,227 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Whole-program pass which replaces calls of small functions and methods with their bodies.
+ * <p>
+ * At a call the arguments are on the stack. The inlined body pops them into new locals of the caller and then
+ * runs with argument and local remapped to those locals. A return becomes a jump to the end of the body, which
+ * leaves the return value on the stack as the call would. Labels get a suffix per call site, the callee's locals
+ * are cleared as the VM does on a call, and this is saved and restored around callees which set pointer 0.
+ * Call sites run one after another, so they all share the same new locals of the caller.
+ */
+public class Inliner {
+    private final int threshold;
+    private final Map<String, Callee> callees = new HashMap<>();
+    private int inlinedCalls;
+    private int instructionsIn;
+    private int instructionsOut;
+    private final Map<String, Integer> inlinedFunctions = new LinkedHashMap<>();
+
+    private static final class Callee {
+        final String file;
+        final String name;
+        final int nLocals;
+        final List<VMInstruction> body; // Without the function command.
+        boolean inlinable;
+        boolean setsThis;
+        boolean usesStatic;
+        int nArgs; // Highest argument index used plus one.
+
+        Callee(String file, String name, int nLocals, List<VMInstruction> body) {
+            this.file = file;
+            this.name = name;
+            this.nLocals = nLocals;
+            this.body = body;
+        }
+    }
+
+    /**
+     * @param threshold largest body, in VM instructions without the function command, which is inlined
+     */
+    public Inliner(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param program the code of every file of the program
+     * @return the same files with the calls of small functions inlined; the functions themselves are kept
+     */
+    public Map<String, List<VMInstruction>> inline(Map<String, List<VMInstruction>> program) {
+        for (Map.Entry<String, List<VMInstruction>> file : program.entrySet()) {
+            collectCallees(file.getKey(), file.getValue());
+        }
+        for (Callee callee : callees.values()) {
+            analyze(callee);
+        }
+        Map<String, List<VMInstruction>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<VMInstruction>> file : program.entrySet()) {
+            instructionsIn += file.getValue().size();
+            List<VMInstruction> code = inlineFile(file.getKey(), file.getValue());
+            instructionsOut += code.size();
+            result.put(file.getKey(), code);
+        }
+        return result;
+    }
+
+    private void collectCallees(String file, List<VMInstruction> code) {
+        Callee current = null;
+        for (VMInstruction instruction : code) {
+            if (instruction.is(VMInstruction.Op.FUNCTION)) {
+                current = new Callee(file, instruction.getName(), instruction.getNumber(), new ArrayList<>());
+                callees.put(current.name, current);
+            } else if (current != null) {
+                current.body.add(instruction);
+            }
+        }
+    }
+
+    private void analyze(Callee callee) {
+        callee.inlinable = callee.body.size() <= threshold;
+        for (VMInstruction instruction : callee.body) {
+            if (instruction.is(VMInstruction.Op.CALL) && instruction.getName().equals(callee.name)) {
+                callee.inlinable = false; // Recursive.
+            } else if (instruction.isPush(Segment.argument) || isPop(instruction, Segment.argument)) {
+                callee.nArgs = Math.max(callee.nArgs, instruction.getNumber() + 1);
+            } else if (isPop(instruction, Segment.pointer) && instruction.getNumber() == 0) {
+                callee.setsThis = true;
+            } else if (instruction.getSegment() == Segment.STATIC) {
+                callee.usesStatic = true;
+            }
+        }
+    }
+
+    private static boolean isPop(VMInstruction instruction, Segment segment) {
+        return instruction.is(VMInstruction.Op.POP) && instruction.getSegment() == segment;
+    }
+
+    /**
+     * Statics belong to the file of their class, so a callee which uses them is only inlined into its own file.
+     */
+    private Callee inlinableCallee(String file, String caller, VMInstruction call) {
+        Callee callee = callees.get(call.getName());
+        if (callee == null || !callee.inlinable || callee.name.equals(caller)) return null;
+        if (callee.nArgs > call.getNumber()) return null;
+        if (!callee.file.equals(file) && callee.usesStatic) return null;
+        return callee;
+    }
+
+    private List<VMInstruction> inlineFile(String file, List<VMInstruction> code) {
+        List<VMInstruction> result = new ArrayList<>(code.size());
+        int functionStart = -1;
+        int nLocals = 0;
+        int extraLocals = 0;
+        int site = 0;
+        String caller = null;
+        for (VMInstruction instruction : code) {
+            if (instruction.is(VMInstruction.Op.FUNCTION)) {
+                finishFunction(result, functionStart, caller, nLocals, extraLocals);
+                functionStart = result.size();
+                caller = instruction.getName();
+                nLocals = instruction.getNumber();
+                extraLocals = 0;
+                site = 0;
+                result.add(instruction);
+                continue;
+            }
+            Callee callee = instruction.is(VMInstruction.Op.CALL) && caller != null
+                    ? inlinableCallee(file, caller, instruction) : null;
+            if (callee == null) {
+                result.add(instruction);
+                continue;
+            }
+            extraLocals = Math.max(extraLocals, writeBody(result, callee, instruction.getNumber(), nLocals, site++));
+            inlinedCalls++;
+            inlinedFunctions.merge(callee.name, 1, Integer::sum);
+        }
+        finishFunction(result, functionStart, caller, nLocals, extraLocals);
+        return result;
+    }
+
+    private static void finishFunction(List<VMInstruction> result, int functionStart, String caller, int nLocals,
+                                       int extraLocals) {
+        if (functionStart >= 0 && extraLocals > 0) {
+            result.set(functionStart, VMInstruction.function(caller, nLocals + extraLocals));
+        }
+    }
+
+    /**
+     * @return number of locals the body needs above the caller's own ones
+     */
+    private static int writeBody(List<VMInstruction> result, Callee callee, int nArgs, int base, int site) {
+        int savedThis = base + nArgs + callee.nLocals;
+        String suffix = ".inl" + site;
+        String end = callee.name + suffix;
+        for (int i = nArgs - 1; i >= 0; i--) {
+            result.add(VMInstruction.pop(Segment.local, base + i));
+        }
+        for (int i = 0; i < callee.nLocals; i++) {
+            result.add(VMInstruction.push(Segment.constant, 0));
+            result.add(VMInstruction.pop(Segment.local, base + nArgs + i));
+        }
+        if (callee.setsThis) {
+            result.add(VMInstruction.push(Segment.pointer, 0));
+            result.add(VMInstruction.pop(Segment.local, savedThis));
+        }
+        boolean jumpsToEnd = false;
+        for (int i = 0; i < callee.body.size(); i++) {
+            VMInstruction instruction = callee.body.get(i);
+            switch (instruction.getOp()) {
+                case PUSH:
+                case POP: result.add(remap(instruction, nArgs, base)); break;
+                case LABEL: result.add(VMInstruction.label(instruction.getName() + suffix)); break;
+                case GOTO: result.add(VMInstruction.gotoLabel(instruction.getName() + suffix)); break;
+                case IF_GOTO: result.add(VMInstruction.ifGoto(instruction.getName() + suffix)); break;
+                case RETURN: {
+                    if (i < callee.body.size() - 1) {
+                        result.add(VMInstruction.gotoLabel(end));
+                        jumpsToEnd = true;
+                    }
+                } break;
+                default: result.add(instruction);
+            }
+        }
+        if (jumpsToEnd) {
+            result.add(VMInstruction.label(end));
+        }
+        if (callee.setsThis) {
+            result.add(VMInstruction.push(Segment.local, savedThis));
+            result.add(VMInstruction.pop(Segment.pointer, 0));
+        }
+        return nArgs + callee.nLocals + (callee.setsThis ? 1 : 0);
+    }
+
+    private static VMInstruction remap(VMInstruction instruction, int nArgs, int base) {
+        int index;
+        if (instruction.getSegment() == Segment.argument) {
+            index = base + instruction.getNumber();
+        } else if (instruction.getSegment() == Segment.local) {
+            index = base + nArgs + instruction.getNumber();
+        } else {
+            return instruction;
+        }
+        return instruction.is(VMInstruction.Op.PUSH) ? VMInstruction.push(Segment.local, index)
+                : VMInstruction.pop(Segment.local, index);
+    }
+
+    /**
+     * Every inlined call saves a call and a return at run time; the report shows what it costs in code size.
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder("inlining: inlined ").append(inlinedCalls).append(" call(s) of ")
+                .append(inlinedFunctions.size()).append(" function(s) of at most ").append(threshold)
+                .append(" instructions, ").append(instructionsIn).append(" -> ").append(instructionsOut)
+                .append(" VM instructions");
+        if (!inlinedFunctions.isEmpty()) {
+            List<String> counts = new ArrayList<>();
+            inlinedFunctions.forEach((name, count) -> counts.add(name + " x" + count));
+            sb.append(": ").append(String.join(", ", counts));
+        }
+        return sb.toString();
+    }
+}
@@ -1,47 +1,612 @@
 package ru.riverx;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public class JackAnalyzer {
+    static final String VERSION = "1.0";
+
     public static void main(String[] args) {
-        if (args.length > 0) {
-            String name = args[0];
-            if (name.contains(".jack"))
-                compileFile(name);
-            else
-                compileFolder(name);
+        CompilerOptions options;
+        try {
+            options = CompilerOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            return;
+        }
+        if (options.getTarget() != null) {
+            String name = options.getTarget();
+            boolean isFile = name.contains(".jack");
+            BuildCache cache = null;
+            if (options.isCache()) {
+                Path folder = isFile ? Paths.get(name).toAbsolutePath().getParent() : Paths.get(name);
+                cache = BuildCache.open(folder, options);
+            }
+            BuildStats stats = options.isCollectStats() ? new BuildStats() : null;
+            if (isFile && options.isWholeProgram()) {
+                System.err.println("Error: --dce, --inline, --strings program and --emit asm expect a folder, "
+                        + "they need the whole program");
+                printUsage();
+                return;
+            }
+            if (options.isWatch()) {
+                if (isFile) {
+                    System.err.println("Error: --watch expects a folder");
+                    printUsage();
+                    return;
+                }
+                watchFolder(name, options, cache, stats);
+                return;
+            }
+            try {
+                if (isFile)
+                    compileFile(name, options, cache, stats, null);
+                else
+                    compileFolder(name, options, cache, stats);
+            } finally {
+                saveCache(cache);
+                reportStats(stats, options);
+            }
         } else {
-            System.out.println("Please provide the .jack file or directory to compile");
-            System.out.println("Example: java GrammarAnalyzer Main.jack");
-            System.out.println("Example: java GrammarAnalyzer PongGame-folder");
+            printUsage();
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Please provide the .jack file or directory to compile");
+        System.out.println("Example: java GrammarAnalyzer Main.jack");
+        System.out.println("Example: java GrammarAnalyzer PongGame-folder");
+        System.out.println("Example: java GrammarAnalyzer --jobs 4 PongGame-folder");
+        System.out.println("Options: --jobs N    compile N files of a folder in parallel");
+        System.out.println("         --stream    tokenize while reading instead of loading whole files");
+        System.out.println("         --cache     skip files which did not change since the last cached build");
+        System.out.println("         --emit M    files to write: vm, xml, both (default) or asm, one Hack assembly file");
+        System.out.println("                     for the folder; .vm files without a .jack source, like the OS, are");
+        System.out.println("                     translated into it too");
+        System.out.println("         -O0..-O2    optimization level, -O1 runs the peephole optimizer and shortens array");
+        System.out.println("                     access, -O2 also folds constant expressions and hoists loop invariants");
+        System.out.println("                     (default -O0); with --emit asm -O1 also keeps the top of the stack");
+        System.out.println("                     in the D register");
+        System.out.println("         --watch     keep running and recompile the .jack files of the folder when they change");
+        System.out.println("         --stats     print time and allocation of every phase: read, tokenize, parse, codegen, write");
+        System.out.println("                     (with --stream the source is read while tokenizing)");
+        System.out.println("         --stats-json F  write the same metrics to the json file F");
+        System.out.println("         --dce       drop the subroutines which are not reachable from Main.main, the OS");
+        System.out.println("                     classes are kept; the whole folder is compiled on every build");
+        System.out.println("         --inline N  replace calls of non-recursive subroutines of at most N VM instructions");
+        System.out.println("                     with their bodies; the whole folder is compiled on every build");
+        System.out.println("         --strings S build every string literal once and reuse it, pooled per class or per");
+        System.out.println("                     program (S is class or program); literals must not be changed or disposed");
+        System.out.println("         --short-circuit  evaluate & and | of booleans in if and while conditions from left");
+        System.out.println("                     to right only until the result is known, as jumps");
+    }
+
+    private static void saveCache(BuildCache cache) {
+        if (cache != null) {
+            cache.save();
+            System.out.println("Build cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+        }
+    }
+
+    /**
+     * Prints and writes the metrics of the files compiled since the last report, then starts over.
+     */
+    private static void reportStats(BuildStats stats, CompilerOptions options) {
+        if (stats == null || stats.isEmpty()) return;
+        if (options.isStats()) {
+            stats.print();
+        }
+        if (options.getStatsJson() != null) {
+            try {
+                stats.writeJson(Paths.get(options.getStatsJson()));
+            } catch (IOException e) {
+                System.err.println("Error: " + e);
+                e.printStackTrace();
+            }
+        }
+        stats.clear();
+    }
+
+    /**
+     * Compiles the whole folder once, then only the files that change. The JVM stays warm between
+     * batches, and a failing batch is reported without stopping the watch.
+     */
+    private static void watchFolder(String folderName, CompilerOptions options, BuildCache cache, BuildStats stats) {
+        BuildCache indexCache = cache != null ? cache : BuildCache.inMemory(options);
+        ProgramIndex[] previous = new ProgramIndex[1];
+        compileWatchBatch(folderName, getAllFilenames(folderName), options, cache, indexCache, previous, stats);
+        try {
+            new FolderWatcher(folderName, batch -> compileWatchBatch(folderName, batch, options, cache, indexCache,
+                    previous, stats)).run();
+        } catch (IOException e) {
+            System.err.println("Error: " + e);
+            e.printStackTrace();
         }
     }
 
-    private static void compileFile(String filename) {
-        String file = readFile(filename);
-        JackTokenizer tokenizer = new JackTokenizer(file);
-        CompilationEngine engine = new CompilationEngine(tokenizer);
-        writeTokensToFile(filename, ".xml", engine.getTokensXml());
-        writeTokensToFile(filename, ".vm", engine.getGeneratedVMCode());
+    /**
+     * The index is built again, parsing only the changed files, so calls into them are checked against them.
+     * The files which refer to a class whose declarations changed are compiled again as well.
+     * @param indexCache keeps the index entries of the files between batches
+     * @param previous the index of the last batch, replaced by the new one
+     */
+    private static void compileWatchBatch(String folderName, List<String> changedFilenames, CompilerOptions options,
+                                          BuildCache cache, BuildCache indexCache, ProgramIndex[] previous,
+                                          BuildStats stats) {
+        if (changedFilenames == null) return;
+        try {
+            List<String> allFilenames = getAllFilenames(folderName);
+            StringPool strings = newProgramStringPool(options);
+            ProgramIndex index = buildIndex(allFilenames, options, stats, strings, indexCache);
+            List<String> filenames = changedFilenames;
+            if (previous[0] != null) {
+                Set<String> changedClasses = index.changedClasses(previous[0]);
+                Set<String> batch = new TreeSet<>(changedFilenames);
+                for (String filename : allFilenames) {
+                    if (index.dependsOn(classNameOf(filename), changedClasses)) batch.add(filename);
+                }
+                filenames = new ArrayList<>(batch);
+            }
+            previous[0] = index;
+            if (options.isWholeProgram()) {
+                compileProgram(allFilenames, options, cache, stats, index, strings);
+            } else if (options.getJobs() > 1 && filenames.size() > 1) {
+                // Every file is compiled even if one of them fails: a task which throws would stop the pool.
+                compileInParallel(filenames, options, filename -> {
+                    try {
+                        compileFile(filename, options, cache, stats, index);
+                    } catch (RuntimeException e) {
+                        reportWatchError(new RuntimeException("Failed to compile " + filename, e));
+                    }
+                });
+            } else {
+                for (String filename : filenames) {
+                    try {
+                        compileFile(filename, options, cache, stats, index);
+                    } catch (RuntimeException e) {
+                        reportWatchError(new RuntimeException("Failed to compile " + filename, e));
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            reportWatchError(e);
+        } finally {
+            saveCache(cache);
+            reportStats(stats, options);
+        }
     }
 
-    private static void compileFolder(String folderName) {
+    private static void reportWatchError(RuntimeException e) {
+        System.err.println("Error: " + e.getMessage() + (e.getCause() != null ? ": " + e.getCause().getMessage() : ""));
+    }
+
+    /**
+     * @param index declarations of the other classes of the program or null to check calls within the class only
+     */
+    private static void compileFile(String filename, CompilerOptions options, BuildCache cache, BuildStats stats,
+                                    ProgramIndex index) {
+        Path source = Paths.get(filename);
+        String key = null;
+        if (cache != null) {
+            try {
+                key = cache.keyOf(source, index != null ? index.dependencyKey(classNameOf(filename)) : "");
+            } catch (IOException e) {
+                System.err.println("Error: " + e);
+                e.printStackTrace();
+                return;
+            }
+            if (cache.isUpToDate(source, key, outputsOf(filename, options))) {
+                return;
+            }
+        }
+        compileFile(filename, options, stats != null ? stats.startFile(filename) : null, index, null, null);
+        if (cache != null) {
+            cache.update(source, key);
+        }
+    }
+
+    /**
+     * A Jack class is declared in the file of the same name.
+     */
+    private static String classNameOf(String filename) {
+        String name = Paths.get(filename).getFileName().toString();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    private static List<Path> outputsOf(String filename, CompilerOptions options) {
+        List<Path> outputs = new ArrayList<>();
+        if (options.isEmitXml()) outputs.add(outputPath(filename, ".xml"));
+        if (options.isEmitVm()) outputs.add(outputPath(filename, ".vm"));
+        return outputs;
+    }
+
+    /**
+     * The class is parsed into a tree once, then the xml printer and the code generator walk it.
+     * VM code is streamed into the .vm file; the xml tree is written at the end. With --emit xml no VM code
+     * is generated, so the code generator's checks of calls and names don't run either.
+     * @param stats null, or the metrics of this file; the tokens are then scanned up front so tokenizing is timed apart
+     * @param programOutput null, or where the VM code goes instead of the .vm file
+     */
+    private static void compileFile(String filename, CompilerOptions options, BuildStats.FileStats stats,
+                                    ProgramIndex index, VMOutput programOutput, StringPool programStrings) {
+        XmlTreeBuilder xml = options.isEmitXml() ? new XmlTreeBuilder() : null;
+        try (Reader reader = options.isStream() ? newReader(filename) : null;
+             VMChannelOutput vm = options.isEmitVm() && programOutput == null
+                     ? new VMChannelOutput(outputPath(filename, ".vm")) : null) {
+            JackTokenizer tokenizer = reader != null ? new JackTokenizer(reader) : new JackTokenizer(readFile(filename));
+            VMOutput output = programOutput != null ? programOutput : vm; // Null for --emit xml, nothing to generate.
+            VMInstructionCounter counter = null;
+            if (stats != null) {
+                stats.lap(BuildStats.Phase.READ);
+                List<Token> tokens = new ArrayList<>();
+                while (tokenizer.hasNextToken()) {
+                    tokens.add(tokenizer.getNextToken());
+                }
+                tokenizer = new JackTokenizer(tokens);
+                stats.setTokens(tokens.size());
+                if (output != null) output = counter = new VMInstructionCounter(output);
+                stats.lap(BuildStats.Phase.TOKENIZE);
+            }
+            List<FunctionPass> passes = new ArrayList<>();
+            if (output != null && options.getOptimizationLevel() >= 1) {
+                output = addPass(passes, new PeepholeOptimizer(output));
+            }
+            if (output != null && options.getOptimizationLevel() >= 2) {
+                output = addPass(passes, new ConstantFolder(output));
+            }
+            Ast.ClassDec tree = new CompilationEngine(tokenizer).getTree();
+            LoopOptimizer loops = null;
+            if (stats != null) stats.lap(BuildStats.Phase.PARSE);
+            if (tree != null && xml != null) {
+                new XmlPrinter(xml).print(tree);
+            }
+            if (tree != null && output != null) {
+                StringPool strings = programStrings != null ? programStrings
+                        : options.getStringPool() == StringPool.Scope.CLASS ? new StringPool(StringPool.Scope.CLASS) : null;
+                if (options.getOptimizationLevel() >= 2) {
+                    loops = new LoopOptimizer(options.isShortCircuit());
+                    tree = loops.optimize(tree);
+                }
+                new CodeGenerator(output, index != null ? index : new ProgramIndex(), strings,
+                        options.getOptimizationLevel() >= 1, options.isShortCircuit()).generate(tree);
+            }
+            if (!passes.isEmpty()) {
+                passes.get(0).flush();
+                StringBuilder report = new StringBuilder(filename).append(":");
+                if (loops != null) report.append(" ").append(loops.getReport()).append(";");
+                for (FunctionPass pass : passes) {
+                    report.append(" ").append(pass.getReport()).append(";");
+                }
+                System.out.println(report.substring(0, report.length() - 1));
+            }
+            if (stats != null) {
+                stats.setVmInstructions(counter != null ? counter.getCount() : 0);
+                stats.lap(BuildStats.Phase.CODEGEN);
+            }
+            if (vm != null) vm.finish();
+        } catch (IOException e) {
+            System.err.println("Error: " + e);
+            e.printStackTrace();
+            return;
+        }
+        if (xml != null) writeTokensToFile(filename, ".xml", xml.getLines());
+        if (stats != null) stats.lap(BuildStats.Phase.WRITE);
+    }
+
+    /**
+     * Passes are created from the output backwards, the last one added receives the code first.
+     */
+    private static FunctionPass addPass(List<FunctionPass> passes, FunctionPass pass) {
+        passes.add(0, pass);
+        return pass;
+    }
+
+    private static Reader newReader(String filename) throws IOException {
+        return new InputStreamReader(Files.newInputStream(Paths.get(filename)), StandardCharsets.UTF_8);
+    }
+
+    private static void compileFolder(String folderName, CompilerOptions options, BuildCache cache, BuildStats stats) {
         List<String> filenames = getAllFilenames(folderName);
         if (filenames != null) {
+            StringPool strings = newProgramStringPool(options);
+            compileFiles(filenames, options, cache, stats, buildIndex(filenames, options, stats, strings, cache), strings);
+        }
+    }
+
+    private static void compileFiles(List<String> filenames, CompilerOptions options, BuildCache cache,
+                                     BuildStats stats, ProgramIndex index, StringPool strings) {
+        if (options.isWholeProgram()) {
+            compileProgram(filenames, options, cache, stats, index, strings);
+        } else if (options.getJobs() > 1 && filenames.size() > 1) {
+            compileInParallel(filenames, options, filename -> compileFile(filename, options, cache, stats, index));
+        } else {
             for (String filename : filenames) {
-                compileFile(filename);
+                compileFile(filename, options, cache, stats, index);
             }
         }
     }
 
+    /**
+     * First pass over the program: every file is parsed, on --jobs threads, and the declarations of its class
+     * are indexed. A file which doesn't parse is left out here and reported when it is compiled.
+     * With a cache the entries of unchanged files are taken from it instead of parsing them again.
+     * @param cache null, or the cache of index entries; not used with the program string pool, which needs
+     *              the literals of every file
+     */
+    private static ProgramIndex buildIndex(List<String> filenames, CompilerOptions options, BuildStats stats,
+                                           StringPool strings, BuildCache cache) {
+        long start = System.nanoTime();
+        BuildCache entries = strings == null ? cache : null;
+        List<IndexedFile> files = new ArrayList<>();
+        if (options.getJobs() > 1 && filenames.size() > 1) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(options.getJobs(), filenames.size()));
+            try {
+                List<Future<IndexedFile>> results = new ArrayList<>();
+                for (String filename : filenames) {
+                    results.add(pool.submit(() -> indexFile(filename, options, entries)));
+                }
+                for (Future<IndexedFile> result : results) {
+                    files.add(result.get());
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to index the program", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while indexing the program", e);
+            } finally {
+                pool.shutdownNow();
+            }
+        } else {
+            for (String filename : filenames) {
+                files.add(indexFile(filename, options, entries));
+            }
+        }
+        ProgramIndex index = new ProgramIndex();
+        for (IndexedFile file : files) {
+            if (file.entry != null) index.addEntry(file.entry);
+            if (strings != null && file.tree != null) strings.addAll(file.tree);
+        }
+        if (stats != null) stats.setIndex(index.size(), System.nanoTime() - start);
+        return index;
+    }
+
+    /** The index entry of a file, null if it doesn't parse, and its tree if it was parsed. */
+    private static final class IndexedFile {
+        final String entry;
+        final Ast.ClassDec tree;
+
+        IndexedFile(String entry, Ast.ClassDec tree) {
+            this.entry = entry;
+            this.tree = tree;
+        }
+    }
+
+    private static IndexedFile indexFile(String filename, CompilerOptions options, BuildCache cache) {
+        Path source = Paths.get(filename);
+        String hash = null;
+        if (cache != null) {
+            try {
+                hash = BuildCache.hashOf(source);
+            } catch (IOException e) {
+                return new IndexedFile(null, null); // Reported when the file is compiled.
+            }
+            String entry = cache.indexEntryOf(source, hash);
+            if (entry != null) return new IndexedFile(entry, null);
+        }
+        Ast.ClassDec tree = parseForIndex(filename, options);
+        if (tree == null) return new IndexedFile(null, null);
+        String entry = ProgramIndex.entryOf(tree);
+        if (cache != null) cache.updateIndexEntry(source, hash, entry);
+        return new IndexedFile(entry, tree);
+    }
+
+    private static Ast.ClassDec parseForIndex(String filename, CompilerOptions options) {
+        try (Reader reader = options.isStream() ? newReader(filename) : null) {
+            JackTokenizer tokenizer = reader != null ? new JackTokenizer(reader) : new JackTokenizer(readFile(filename));
+            return new CompilationEngine(tokenizer).getTree();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds with --dce, --inline or the program string pool. The VM code of every file stays in memory until
+     * the whole program is compiled, then the string pool is added, small subroutines are inlined, the unreachable
+     * functions are dropped and the .vm files are written. The outputs depend on the whole program, so every file
+     * is compiled and left out of the build cache.
+     */
+    private static void compileProgram(List<String> filenames, CompilerOptions options, BuildCache cache,
+                                       BuildStats stats, ProgramIndex index, StringPool strings) {
+        if (strings != null && index.hasClass(StringPool.PROGRAM_CLASS)) {
+            throw new RuntimeException("Class " + StringPool.PROGRAM_CLASS
+                    + " is generated for --strings program, the program can't declare it");
+        }
+        Map<String, VMInstructionBuffer> buffers = new LinkedHashMap<>();
+        for (String filename : filenames) {
+            buffers.put(filename, new VMInstructionBuffer());
+        }
+        Consumer<String> compile = filename -> {
+            compileFile(filename, options, stats != null ? stats.startFile(filename) : null, index,
+                    buffers.get(filename), strings);
+            if (cache != null) cache.invalidate(Paths.get(filename));
+        };
+        if (options.getJobs() > 1 && filenames.size() > 1) {
+            compileInParallel(filenames, options, compile);
+        } else {
+            filenames.forEach(compile);
+        }
+        Map<String, List<VMInstruction>> program = new LinkedHashMap<>();
+        for (Map.Entry<String, VMInstructionBuffer> buffer : buffers.entrySet()) {
+            program.put(buffer.getKey(), buffer.getValue().getInstructions());
+        }
+        if (strings != null && !strings.isEmpty() && !filenames.isEmpty()) {
+            VMInstructionBuffer pool = new VMInstructionBuffer();
+            new CodeGenerator(pool).generateStringPool(strings);
+            String poolFile = Paths.get(filenames.get(0)).resolveSibling(StringPool.PROGRAM_CLASS + ".jack").toString();
+            program.put(poolFile, pool.getInstructions());
+            System.out.println("string pool: " + strings.getStrings().size() + " literal(s) in "
+                    + outputPath(poolFile, ".vm"));
+        }
+        Inliner inliner = null;
+        if (options.getInlineThreshold() > 0) {
+            inliner = new Inliner(options.getInlineThreshold());
+            program = inliner.inline(program);
+        }
+        if (options.isEmitAsm() && !filenames.isEmpty()) {
+            program.putAll(readLibraries(Paths.get(filenames.get(0)).toAbsolutePath().getParent(), filenames));
+        }
+        DeadSubroutineEliminator eliminator = null;
+        if (options.isDeadCodeElimination()) {
+            eliminator = new DeadSubroutineEliminator();
+            program = eliminator.eliminate(program);
+        }
+        if (options.isEmitAsm()) {
+            if (!filenames.isEmpty()) {
+                writeAssembly(program, Paths.get(filenames.get(0)).toAbsolutePath().getParent(),
+                        options.getOptimizationLevel() >= 1);
+            }
+        } else {
+            for (Map.Entry<String, List<VMInstruction>> file : program.entrySet()) {
+                try (VMChannelOutput vm = new VMChannelOutput(outputPath(file.getKey(), ".vm"))) {
+                    for (VMInstruction instruction : file.getValue()) {
+                        instruction.writeTo(vm);
+                    }
+                    vm.finish();
+                } catch (IOException e) {
+                    System.err.println("Error: " + e);
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (inliner != null) System.out.println(inliner.getReport());
+        if (eliminator != null) System.out.println(eliminator.getReport());
+    }
+
+    /**
+     * @return VM code of the .vm files of the folder which have no .jack source, like the OS; the .vm file of
+     * the program string pool is generated, it is not a library
+     */
+    private static Map<String, List<VMInstruction>> readLibraries(Path folder, List<String> filenames) {
+        Set<Path> sources = new HashSet<>();
+        for (String filename : filenames) {
+            sources.add(outputPath(Paths.get(filename).toAbsolutePath().toString(), ".vm"));
+        }
+        sources.add(folder.resolve(StringPool.PROGRAM_CLASS + ".vm"));
+        Map<String, List<VMInstruction>> libraries = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(folder)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (!path.getFileName().toString().endsWith(".vm") || sources.contains(path)) continue;
+                List<VMInstruction> code = new ArrayList<>();
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    VMInstruction instruction = VMInstruction.parse(line);
+                    if (instruction != null) code.add(instruction);
+                }
+                libraries.put(path.toString(), code);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e);
+            e.printStackTrace();
+        }
+        return libraries;
+    }
+
+    /**
+     * Writes the program as one folder/Folder.asm. The program starts in Sys.init if the OS is part of it,
+     * otherwise in Main.main, and calls of functions which have no code are reported.
+     * @param cacheTop keep the top of the stack in the D register, see {@link HackAssemblyOutput}
+     */
+    private static void writeAssembly(Map<String, List<VMInstruction>> program, Path folder, boolean cacheTop) {
+        Set<String> defined = new HashSet<>();
+        Set<String> called = new TreeSet<>();
+        long vmInstructions = 0;
+        for (List<VMInstruction> code : program.values()) {
+            vmInstructions += code.size();
+            for (VMInstruction instruction : code) {
+                if (instruction.is(VMInstruction.Op.FUNCTION)) defined.add(instruction.getName());
+                else if (instruction.is(VMInstruction.Op.CALL)) called.add(instruction.getName());
+            }
+        }
+        called.removeAll(defined);
+        Path target = folder.resolve(folder.getFileName() + ".asm");
+        try (Writer writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            HackAssemblyOutput asm = new HackAssemblyOutput(writer, cacheTop);
+            asm.writeBootstrap(defined.contains("Sys.init") ? "Sys.init" : "Main.main");
+            for (Map.Entry<String, List<VMInstruction>> file : program.entrySet()) {
+                asm.setFileName(classNameOf(file.getKey()));
+                for (VMInstruction instruction : file.getValue()) {
+                    instruction.writeTo(asm);
+                }
+            }
+            asm.finish();
+            System.out.println("assembly: " + asm.getInstructionCount() + " Hack instructions from " + vmInstructions
+                    + " VM instructions in " + target);
+        } catch (IOException e) {
+            System.err.println("Error: " + e);
+            e.printStackTrace();
+        }
+        if (!called.isEmpty()) {
+            System.out.println("Warning: no code for " + String.join(", ", called)
+                    + "; put the OS .vm files into the folder to link them");
+        }
+    }
+
+    /**
+     * @return the pool which the index pass fills with the literals of the program, or null without --strings program
+     */
+    private static StringPool newProgramStringPool(CompilerOptions options) {
+        return options.getStringPool() == StringPool.Scope.PROGRAM ? new StringPool(StringPool.Scope.PROGRAM) : null;
+    }
+
+    /**
+     * Every file has its own tokenizer, engine and writer, so files are compiled independently on a bounded pool.
+     * Results are awaited in the same order as the sequential run, so failures are reported in that order too.
+     */
+    private static void compileInParallel(List<String> filenames, CompilerOptions options, Consumer<String> compile) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(options.getJobs(), filenames.size()));
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (String filename : filenames) {
+                results.add(pool.submit(() -> compile.accept(filename)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Failed to compile " + filenames.get(i), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while compiling " + filenames.get(i), e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     private static List<String> getAllFilenames(String folderName) {
         try (Stream<Path> paths = Files.walk(Paths.get(folderName))) {
             List<String> files = new ArrayList<>();
@@ -51,6 +616,7 @@ public class JackAnalyzer {
                         String base = p.getFileName().toString();
                         files.add(folderName + "/" + base);
                     });
+            Collections.sort(files); // Keeps the compilation order independent of the file system.
             return files;
         } catch (IOException e) {
             e.printStackTrace();
@@ -58,24 +624,24 @@ public class JackAnalyzer {
         return null;
     }
 
-    private static String readFile(String filename) {
-        StringBuilder buffer = new StringBuilder();
+    private static CharBuffer readFile(String filename) {
         try {
-            List<String> tmp = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
-            for (String line : tmp) {
-                buffer.append(line).append("\n");
-            }
+            return SourceLoader.load(Paths.get(filename));
         } catch (IOException e) {
             System.err.println("Error: " + e);
             e.printStackTrace();
         }
-        return buffer.toString();
+        return CharBuffer.allocate(0);
+    }
+
+    private static Path outputPath(String filename, String ext) {
+        return Paths.get(filename.substring(0, filename.lastIndexOf(".")) + ext);
     }
 
     private static void writeTokensToFile(String filename, String ext, List<String> tokenList) {
         try {
-            String name = filename.substring(0, filename.indexOf("."));
-            Files.write(Paths.get(name + ext), tokenList, StandardOpenOption.CREATE);
+            Files.write(outputPath(filename, ext), tokenList, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,35 +1,83 @@
 package ru.riverx;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
+/**
+ * Produces tokens on demand. The source is either an in-memory char buffer which is scanned in place,
+ * or a {@link Reader} which is consumed in fixed-size chunks, so only a small lookahead of tokens is ever kept in memory.
+ */
 public class JackTokenizer {
     private static final String SYMBOLS = "{}()[].,;+-*/&|<>=~";
-    private static final String[] _KEYWORDS = {"class", "constructor", "function", "method", "field", "static", "var", "int", "char", "boolean", "void", "true", "false", "null", "this", "let", "do", "if", "else", "while", "return"};
-    private final List<String> KEYWORDS;
-    private final List<Token> tokenList;
-    private final String input;
-    private final int length;
-    private final int tokenLength;
+    private static final int CHUNK_SIZE = 8192;
+    private final Reader reader;
+    private char[] chunk;
+    private int length;
     private int symbolCount;
-    private int tokenCount;
+    private int tokenStart; // Start of the token being scanned, kept in the chunk on refill; -1 between tokens.
+    private Token peeked; // The engine holds the current token, so one token of lookahead is enough.
+    private final Iterator<Token> replay;
 
     public JackTokenizer(String input) {
-        this.input = input;
-        this.length = input.length();
-        this.symbolCount = 0;
-        this.tokenCount = 0;
-        this.KEYWORDS = Arrays.asList(_KEYWORDS);
-        this.tokenList = tokenize();
-        this.tokenLength = tokenList.size();
+        this(null, input.toCharArray(), 0, input.length());
     }
 
+    /**
+     * Scans the buffer between its position and limit. Heap buffers, such as the ones produced by
+     * {@link SourceLoader}, are read through their backing array without copying.
+     */
+    public JackTokenizer(CharBuffer input) {
+        this(null, arrayOf(input), input.hasArray() ? input.arrayOffset() + input.position() : 0,
+                input.hasArray() ? input.arrayOffset() + input.limit() : input.remaining());
+    }
+
+    /**
+     * Streaming mode: characters are pulled from the reader while tokens are requested.
+     * The reader is not closed by the tokenizer.
+     */
+    public JackTokenizer(Reader reader) {
+        this(reader, new char[CHUNK_SIZE], 0, 0);
+    }
+
+    /**
+     * Replays tokens scanned before, so --stats can time tokenizing apart from parsing.
+     */
+    public JackTokenizer(List<Token> tokens) {
+        this.reader = null;
+        this.replay = tokens.iterator();
+        this.tokenStart = -1;
+    }
+
+    private JackTokenizer(Reader reader, char[] chunk, int start, int end) {
+        this.replay = null;
+        this.reader = reader;
+        this.chunk = chunk;
+        this.length = end;
+        this.symbolCount = start;
+        this.tokenStart = -1;
+    }
+
+    private static char[] arrayOf(CharBuffer input) {
+        if (input.hasArray()) return input.array();
+        char[] copy = new char[input.remaining()];
+        input.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Drains the remaining tokens as xml lines.
+     */
     public List<String> getTokenListAsStringList() {
         List<String> tmp = new ArrayList<>();
         tmp.add("<tokens>");
-        for (Token token : tokenList) {
-            tmp.add(token.toXmlString());
+        while (hasNextToken()) {
+            tmp.add(getNextToken().toXmlString());
         }
         tmp.add("</tokens>");
         return tmp;
@@ -38,84 +86,108 @@ public class JackTokenizer {
     public static String getSymbols() { return SYMBOLS; }
 
     public boolean hasNextToken() {
-        return tokenCount < tokenLength;
+        return fillLookahead();
     }
 
     public Token getNextToken() {
-        return tokenList.get(tokenCount++);
+        Token token = getSecondNextToken();
+        peeked = null;
+        return token;
+    }
+
+    public Token getSecondNextToken() {
+        if (!fillLookahead()) {
+            throw new IndexOutOfBoundsException("There are no more tokens");
+        }
+        return peeked;
     }
 
-    public Token getSecondNextToken() { return tokenList.get(tokenCount); }
+    private boolean fillLookahead() {
+        if (peeked == null) {
+            peeked = nextToken();
+        }
+        return peeked != null;
+    }
 
-    private List<Token> tokenize() {
-        List<Token> tokenList = new ArrayList<>();
+    private Token nextToken() {
+        if (replay != null) {
+            return replay.hasNext() ? replay.next() : null;
+        }
         while (hasNext()) {
             char current = getNext();
-            if ('\n' == current || '\t' == current || ' ' == current) continue; // Ignore space and \r\n
+            if ('\n' == current || '\r' == current || '\t' == current || ' ' == current) continue; // Ignore space and \r\n
             if (Character.isDigit(current)) {
-                tokenList.add(tokenizeDigit(current)); continue;
+                return tokenizeDigit();
             }
             if (Character.isLetter(current)) {
-                tokenList.add(tokenizeWord(current)); continue;
+                return tokenizeWord();
             }
             if ('"' == current) {
-                tokenList.add(tokenizeString()); continue;
+                return tokenizeString();
             }
             if ('/' == current && isComment()) {
                 ignoreSpecialComments(); continue;
             }
-            tokenList.add(tokenizeSymbol(current));
+            return tokenizeSymbol(current);
         }
-        return tokenList;
+        return null;
     }
 
-    private Token tokenizeDigit(char current) {
-        StringBuilder buffer = new StringBuilder().append(current);
+    private Token tokenizeDigit() {
+        tokenStart = symbolCount - 1;
         while (hasNext()) {
-            char next = getNext();
-            if (Character.isDigit(next)) {
-                buffer.append(next);
-            } else {
-                symbolCount--;
+            if (!Character.isDigit(getNext())) {
+                undoNext();
                 break;
             }
         }
-        return new Token(buffer.toString(), TokenType.integerConstant);
+        return takeToken(TokenType.integerConstant, symbolCount);
     }
 
-    private Token tokenizeWord(char current) {
-        StringBuilder buffer = new StringBuilder().append(current);
+    private Token tokenizeWord() {
+        tokenStart = symbolCount - 1;
         while (hasNext()) {
             char next = getNext();
-            if (Character.isSpaceChar(next) || SYMBOLS.indexOf(next) != -1) {
+            if (!Character.isLetterOrDigit(next) && '_' != next) {
+                undoNext();
                 break;
-            } else if (Character.isLetterOrDigit(next) || '_' == next) {
-                buffer.append(next);
             }
         }
-        symbolCount--;
-
-        if (KEYWORDS.contains(buffer.toString())) {
-            return new Token(buffer.toString(), TokenType.keyword);
-        } else {
-            return new Token(buffer.toString(), TokenType.identifier);
+        Token keyword = Token.keyword(chunk, tokenStart, symbolCount - tokenStart);
+        if (keyword != null) {
+            tokenStart = -1;
+            return keyword;
         }
+        return takeToken(TokenType.identifier, symbolCount);
     }
 
     private Token tokenizeString() {
-        StringBuilder buffer = new StringBuilder();
+        tokenStart = symbolCount;
         while (hasNext()) {
             char next = getNext();
-            if ('"' == next || (Character.isSpaceChar(next) && !Character.isWhitespace(next))) break;
-            buffer.append(next);
+            if ('"' == next || (Character.isSpaceChar(next) && !Character.isWhitespace(next))) {
+                return takeToken(TokenType.stringConstant, symbolCount - 1);
+            }
         }
-        return new Token(buffer.toString(), TokenType.stringConstant);
+        return takeToken(TokenType.stringConstant, symbolCount);
+    }
+
+    /**
+     * Wraps chunk[tokenStart, end) into a token. A reader reuses its chunk, so streamed tokens copy their text.
+     */
+    private Token takeToken(TokenType type, int end) {
+        int start = tokenStart;
+        tokenStart = -1;
+        if (reader != null) {
+            return new Token(new String(chunk, start, end - start), type);
+        }
+        return new Token(type, chunk, start, end - start);
     }
 
     private Token tokenizeSymbol(char current) {
-        int index = SYMBOLS.indexOf(current);
-        if (index != -1) {
-            return new Token(String.valueOf(current), TokenType.symbol);
+        Token symbol = Token.symbol(current);
+        if (symbol != null) {
+            return symbol;
         } else {
             throw new RuntimeException("Unsupported symbol: " + current);
         }
@@ -131,7 +203,7 @@ public class JackTokenizer {
             if (!Character.isSpaceChar(next) && !isComment) {
                 throw new RuntimeException("Unexpected symbol: " + next);
             }
-            symbolCount--; // Undo counter to the first char
+            undoNext(); // Undo counter to the first char
             return isComment;
         }
         return false;
@@ -144,18 +216,14 @@ public class JackTokenizer {
         }
         switch (current) {
             case '/': {
-                if (hasNext()) {
-                    char next = getNext();
-                    while (!"\n".equals(String.valueOf(next))) {
-                        if (hasNext()) next = getNext();
-                        else break;
-                    }
+                while (hasNext()) {
+                    if ('\n' == getNext()) break;
                 }
             } break;
             case '*': {
                 while (hasNext()) {
                     char next = getNext();
-                    if ('*' == next) {
+                    if ('*' == next && hasNext()) {
                         char second = getNext();
                         if ('/' == second) break;
                     }
@@ -167,10 +235,42 @@ public class JackTokenizer {
     }
 
     private boolean hasNext() {
-        return symbolCount < length;
+        return symbolCount < length || readChunk();
     }
 
     private char getNext() {
-        return input.charAt(symbolCount++);
+        return chunk[symbolCount++];
+    }
+
+    /**
+     * Steps back over the last char. A chunk is only refilled once it is fully consumed,
+     * and a refill keeps at least the char read last, so it is always still in it.
+     */
+    private void undoNext() {
+        symbolCount--;
+    }
+
+    private boolean readChunk() {
+        if (reader == null) return false;
+        // Keeps the unfinished token, or at least the last char for undoNext(), at the start of the chunk.
+        int keep = tokenStart >= 0 ? length - tokenStart : Math.min(length, 1);
+        if (keep == chunk.length) {
+            chunk = Arrays.copyOf(chunk, chunk.length * 2); // The token is longer than the chunk.
+        }
+        System.arraycopy(chunk, length - keep, chunk, 0, keep);
+        if (tokenStart >= 0) tokenStart = 0;
+        try {
+            int read;
+            do {
+                read = reader.read(chunk, keep, chunk.length - keep);
+            } while (read == 0);
+            symbolCount = keep;
+            length = keep;
+            if (read < 0) return false;
+            length += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
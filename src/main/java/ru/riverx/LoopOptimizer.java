@@ -0,0 +1,378 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves expressions which give the same value on every iteration of a while loop in front of the loop, for -O2.
+ * <p>
+ * An expression is hoisted into a new local of the subroutine if it has an operator, reads a variable and
+ * reads nothing the loop changes. Locals and arguments change only by let. Fields and statics may also change
+ * in calls or through array stores, so they count as unchanged only in loops with neither. Calls, array
+ * elements and string literals are never hoisted. Division is left alone too: it would run even when the
+ * loop doesn't, and it fails on zero. Equal expressions of one loop share their local.
+ * Inner loops are done first, so an expression moves out as far as it stays unchanged.
+ */
+public class LoopOptimizer {
+    private static final String PREFIX = "$loop"; // Not a Jack identifier, so it can't clash with a variable.
+    private static final int REPORTED_LENGTH = 60;
+    private final List<String> hoisted = new ArrayList<>();
+    private final boolean keepLogical;
+    private int loops;
+    private String className;
+    private Ast.SubroutineDec subroutine;
+    private Set<String> frameNames;
+    private List<String> newLocals;
+    private Set<String> booleanLocals; // Typed boolean, so --short-circuit still jumps on them.
+
+    /**
+     * @param keepLogical leave &amp; and | in the loop, for --short-circuit where they are jumps which may skip
+     *                    their right operand rather than values worth computing ahead
+     */
+    public LoopOptimizer(boolean keepLogical) {
+        this.keepLogical = keepLogical;
+    }
+
+    /** What a loop changes. */
+    private static final class LoopEffects {
+        final Set<String> assigned = new HashSet<>();
+        boolean writesMemory; // Calls or array stores.
+    }
+
+    /** Expressions hoisted in front of one loop. */
+    private final class Hoist {
+        final LoopEffects effects;
+        final Map<String, String> locals = new LinkedHashMap<>(); // Expression source -> local.
+        final List<Ast.Statement> lets = new ArrayList<>();
+
+        Hoist(LoopEffects effects) {
+            this.effects = effects;
+        }
+
+        Ast.VarRef local(Ast.Expression expression) {
+            String source = toSource(expression);
+            String local = locals.get(source);
+            if (local == null) {
+                local = PREFIX + newLocals.size();
+                newLocals.add(local);
+                if (isComparison(expression)) booleanLocals.add(local);
+                frameNames.add(local);
+                locals.put(source, local);
+                lets.add(new Ast.LetStatement(local, null, expression));
+                hoisted.add(className + "." + subroutine.name + ": "
+                        + (source.length() > REPORTED_LENGTH ? source.substring(0, REPORTED_LENGTH) + "..." : source));
+            }
+            return new Ast.VarRef(local);
+        }
+    }
+
+    public Ast.ClassDec optimize(Ast.ClassDec classDec) {
+        className = classDec.name;
+        List<Ast.SubroutineDec> subroutines = new ArrayList<>();
+        for (Ast.SubroutineDec dec : classDec.subroutines) {
+            subroutines.add(optimize(dec));
+        }
+        return new Ast.ClassDec(classDec.name, classDec.classVarDecs, subroutines);
+    }
+
+    private Ast.SubroutineDec optimize(Ast.SubroutineDec dec) {
+        subroutine = dec;
+        frameNames = new HashSet<>();
+        newLocals = new ArrayList<>();
+        booleanLocals = new HashSet<>();
+        for (Ast.Parameter parameter : dec.parameters) frameNames.add(parameter.name);
+        for (Ast.VarDec varDec : dec.varDecs) frameNames.addAll(varDec.names);
+        List<Ast.Statement> statements = optimizeStatements(dec.statements);
+        if (newLocals.isEmpty()) return dec;
+        List<Ast.VarDec> varDecs = new ArrayList<>(dec.varDecs);
+        List<String> ints = new ArrayList<>();
+        List<String> booleans = new ArrayList<>();
+        for (String local : newLocals) {
+            (booleanLocals.contains(local) ? booleans : ints).add(local);
+        }
+        if (!ints.isEmpty()) varDecs.add(new Ast.VarDec("var", "int", ints));
+        if (!booleans.isEmpty()) varDecs.add(new Ast.VarDec("var", "boolean", booleans));
+        return new Ast.SubroutineDec(dec.kind, dec.returnType, dec.name, dec.parameters, varDecs, statements);
+    }
+
+    private List<Ast.Statement> optimizeStatements(List<Ast.Statement> statements) {
+        List<Ast.Statement> result = new ArrayList<>(statements.size());
+        for (Ast.Statement statement : statements) {
+            if (statement instanceof Ast.WhileStatement) {
+                Ast.WhileStatement loop = (Ast.WhileStatement) statement;
+                List<Ast.Statement> body = optimizeStatements(loop.statements);
+                LoopEffects effects = new LoopEffects();
+                collectEffects(loop.condition, effects); // The condition runs on every iteration too.
+                collectEffects(body, effects);
+                Hoist hoist = new Hoist(effects);
+                Ast.Expression condition = rewrite(loop.condition, hoist);
+                body = rewriteStatements(body, hoist);
+                if (!hoist.lets.isEmpty()) loops++;
+                result.addAll(hoist.lets);
+                result.add(new Ast.WhileStatement(condition, body));
+            } else if (statement instanceof Ast.IfStatement) {
+                Ast.IfStatement ifStatement = (Ast.IfStatement) statement;
+                result.add(new Ast.IfStatement(ifStatement.condition, optimizeStatements(ifStatement.thenStatements),
+                        ifStatement.elseStatements != null ? optimizeStatements(ifStatement.elseStatements) : null));
+            } else {
+                result.add(statement);
+            }
+        }
+        return result;
+    }
+
+    private static void collectEffects(List<Ast.Statement> statements, LoopEffects effects) {
+        for (Ast.Statement statement : statements) {
+            if (statement instanceof Ast.LetStatement) {
+                Ast.LetStatement let = (Ast.LetStatement) statement;
+                if (let.index != null) effects.writesMemory = true;
+                else effects.assigned.add(let.name);
+                collectEffects(let.index, effects);
+                collectEffects(let.value, effects);
+            } else if (statement instanceof Ast.IfStatement) {
+                Ast.IfStatement ifStatement = (Ast.IfStatement) statement;
+                collectEffects(ifStatement.condition, effects);
+                collectEffects(ifStatement.thenStatements, effects);
+                if (ifStatement.elseStatements != null) collectEffects(ifStatement.elseStatements, effects);
+            } else if (statement instanceof Ast.WhileStatement) {
+                collectEffects(((Ast.WhileStatement) statement).condition, effects);
+                collectEffects(((Ast.WhileStatement) statement).statements, effects);
+            } else if (statement instanceof Ast.DoStatement) {
+                effects.writesMemory = true;
+            } else if (statement instanceof Ast.ReturnStatement) {
+                collectEffects(((Ast.ReturnStatement) statement).value, effects);
+            }
+        }
+    }
+
+    /** Expressions only change memory by calls; a string literal is a call of String.new. */
+    private static void collectEffects(Ast.Expression expression, LoopEffects effects) {
+        while (expression instanceof Ast.BinaryExpression) {
+            collectEffects(((Ast.BinaryExpression) expression).left, effects);
+            expression = ((Ast.BinaryExpression) expression).right;
+        }
+        if (expression instanceof Ast.SubroutineCall || expression instanceof Ast.StringConstant) {
+            effects.writesMemory = true;
+        } else if (expression instanceof Ast.ArrayRef) {
+            collectEffects(((Ast.ArrayRef) expression).index, effects);
+        } else if (expression instanceof Ast.ParenthesizedExpression) {
+            collectEffects(((Ast.ParenthesizedExpression) expression).expression, effects);
+        } else if (expression instanceof Ast.UnaryExpression) {
+            collectEffects(((Ast.UnaryExpression) expression).term, effects);
+        }
+    }
+
+    private List<Ast.Statement> rewriteStatements(List<Ast.Statement> statements, Hoist hoist) {
+        List<Ast.Statement> result = new ArrayList<>(statements.size());
+        for (Ast.Statement statement : statements) {
+            if (statement instanceof Ast.LetStatement) {
+                Ast.LetStatement let = (Ast.LetStatement) statement;
+                if (let.name.startsWith(PREFIX) && isInvariant(let.value, hoist.effects)) {
+                    hoist.lets.add(let); // Hoisted from an inner loop and invariant here too, it moves on.
+                    hoist.locals.putIfAbsent(toSource(let.value), let.name);
+                    continue;
+                }
+                result.add(new Ast.LetStatement(let.name, let.index != null ? rewrite(let.index, hoist) : null,
+                        rewrite(let.value, hoist)));
+            } else if (statement instanceof Ast.IfStatement) {
+                Ast.IfStatement ifStatement = (Ast.IfStatement) statement;
+                result.add(new Ast.IfStatement(rewrite(ifStatement.condition, hoist),
+                        rewriteStatements(ifStatement.thenStatements, hoist),
+                        ifStatement.elseStatements != null ? rewriteStatements(ifStatement.elseStatements, hoist) : null));
+            } else if (statement instanceof Ast.WhileStatement) {
+                Ast.WhileStatement loop = (Ast.WhileStatement) statement;
+                result.add(new Ast.WhileStatement(rewrite(loop.condition, hoist), rewriteStatements(loop.statements, hoist)));
+            } else if (statement instanceof Ast.DoStatement) {
+                result.add(new Ast.DoStatement(rewriteCall(((Ast.DoStatement) statement).call, hoist)));
+            } else if (statement instanceof Ast.ReturnStatement) {
+                Ast.Expression value = ((Ast.ReturnStatement) statement).value;
+                result.add(value != null ? new Ast.ReturnStatement(rewrite(value, hoist)) : statement);
+            } else {
+                result.add(statement);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the largest invariant parts of the expression with their locals. In an operator chain, which
+     * nests to the right, those are the terms and the longest invariant tail.
+     */
+    private Ast.Expression rewrite(Ast.Expression expression, Hoist hoist) {
+        if (expression instanceof Ast.BinaryExpression) {
+            List<Ast.BinaryExpression> chain = new ArrayList<>();
+            Ast.Expression tail = expression;
+            boolean conditional = false; // The right operand of a jumping & or | stays where it may be skipped.
+            while (tail instanceof Ast.BinaryExpression && !conditional) {
+                chain.add((Ast.BinaryExpression) tail);
+                conditional = keepLogical && isLogical(((Ast.BinaryExpression) tail).op);
+                tail = ((Ast.BinaryExpression) tail).right;
+            }
+            // The tails are checked from the end, so a long chain is walked once.
+            boolean invariant = !conditional && isInvariant(tail, hoist.effects);
+            boolean readsVariable = readsVariable(tail);
+            int start = chain.size();
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                Ast.BinaryExpression binary = chain.get(i);
+                invariant = invariant && binary.op != '/' && isInvariant(binary.left, hoist.effects);
+                readsVariable = readsVariable || readsVariable(binary.left);
+                if (!invariant) break;
+                if (readsVariable) start = i;
+            }
+            Ast.Expression result = start < chain.size() ? hoist.local(chain.get(start))
+                    : conditional ? tail : rewrite(tail, hoist);
+            List<Ast.Expression> lefts = new ArrayList<>(start);
+            for (int i = 0; i < start; i++) {
+                lefts.add(rewrite(chain.get(i).left, hoist));
+            }
+            for (int i = start - 1; i >= 0; i--) {
+                result = new Ast.BinaryExpression(lefts.get(i), chain.get(i).op, result);
+            }
+            return result;
+        }
+        if (isInvariant(expression, hoist.effects) && isWorthHoisting(expression)) {
+            return hoist.local(expression);
+        }
+        if (expression instanceof Ast.ArrayRef) {
+            Ast.ArrayRef arrayRef = (Ast.ArrayRef) expression;
+            return new Ast.ArrayRef(arrayRef.name, rewrite(arrayRef.index, hoist));
+        }
+        if (expression instanceof Ast.SubroutineCall) {
+            return rewriteCall((Ast.SubroutineCall) expression, hoist);
+        }
+        if (expression instanceof Ast.ParenthesizedExpression) {
+            return new Ast.ParenthesizedExpression(rewrite(((Ast.ParenthesizedExpression) expression).expression, hoist));
+        }
+        if (expression instanceof Ast.UnaryExpression) {
+            Ast.UnaryExpression unary = (Ast.UnaryExpression) expression;
+            return new Ast.UnaryExpression(unary.op, rewrite(unary.term, hoist));
+        }
+        return expression;
+    }
+
+    private Ast.SubroutineCall rewriteCall(Ast.SubroutineCall call, Hoist hoist) {
+        List<Ast.Expression> arguments = new ArrayList<>(call.arguments.size());
+        for (Ast.Expression argument : call.arguments) {
+            arguments.add(rewrite(argument, hoist));
+        }
+        return new Ast.SubroutineCall(call.target, call.name, arguments);
+    }
+
+    private boolean isInvariant(Ast.Expression expression, LoopEffects effects) {
+        while (expression instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression binary = (Ast.BinaryExpression) expression;
+            if (binary.op == '/' || !isInvariant(binary.left, effects)) return false;
+            expression = binary.right;
+        }
+        if (expression instanceof Ast.IntegerConstant || expression instanceof Ast.KeywordConstant) {
+            return true;
+        }
+        if (expression instanceof Ast.VarRef) {
+            String name = ((Ast.VarRef) expression).name;
+            return !effects.assigned.contains(name) && (frameNames.contains(name) || !effects.writesMemory);
+        }
+        if (expression instanceof Ast.ParenthesizedExpression) {
+            return isInvariant(((Ast.ParenthesizedExpression) expression).expression, effects);
+        }
+        if (expression instanceof Ast.UnaryExpression) {
+            return isInvariant(((Ast.UnaryExpression) expression).term, effects);
+        }
+        return false; // Calls, array elements and string literals.
+    }
+
+    /**
+     * @return true if the expression has an operator and reads a variable; constants are left to the folder
+     */
+    private boolean isWorthHoisting(Ast.Expression expression) {
+        while (expression instanceof Ast.ParenthesizedExpression || expression instanceof Ast.UnaryExpression) {
+            expression = expression instanceof Ast.UnaryExpression ? ((Ast.UnaryExpression) expression).term
+                    : ((Ast.ParenthesizedExpression) expression).expression;
+        }
+        return expression instanceof Ast.BinaryExpression && readsVariable(expression)
+                && !(keepLogical && isLogical(((Ast.BinaryExpression) expression).op));
+    }
+
+    private static boolean isComparison(Ast.Expression expression) {
+        while (expression instanceof Ast.ParenthesizedExpression) {
+            expression = ((Ast.ParenthesizedExpression) expression).expression;
+        }
+        return expression instanceof Ast.BinaryExpression && "<>=".indexOf(((Ast.BinaryExpression) expression).op) >= 0;
+    }
+
+    private static boolean isLogical(char op) {
+        return op == '&' || op == '|';
+    }
+
+    private static boolean readsVariable(Ast.Expression expression) {
+        while (expression instanceof Ast.BinaryExpression) {
+            if (readsVariable(((Ast.BinaryExpression) expression).left)) return true;
+            expression = ((Ast.BinaryExpression) expression).right;
+        }
+        if (expression instanceof Ast.VarRef) return true;
+        if (expression instanceof Ast.KeywordConstant) return ((Ast.KeywordConstant) expression).keyword.equals("this");
+        if (expression instanceof Ast.ParenthesizedExpression) {
+            return readsVariable(((Ast.ParenthesizedExpression) expression).expression);
+        }
+        if (expression instanceof Ast.UnaryExpression) return readsVariable(((Ast.UnaryExpression) expression).term);
+        return false;
+    }
+
+    /**
+     * @return the expression as Jack source, to tell equal expressions and for the report
+     */
+    static String toSource(Ast.Expression expression) {
+        StringBuilder sb = new StringBuilder();
+        appendSource(sb, expression);
+        return sb.toString();
+    }
+
+    private static void appendSource(StringBuilder sb, Ast.Expression expression) {
+        while (expression instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression binary = (Ast.BinaryExpression) expression;
+            appendSource(sb, binary.left);
+            sb.append(' ').append(binary.op).append(' ');
+            expression = binary.right;
+        }
+        if (expression instanceof Ast.IntegerConstant) {
+            sb.append(((Ast.IntegerConstant) expression).value);
+        } else if (expression instanceof Ast.StringConstant) {
+            sb.append('"').append(((Ast.StringConstant) expression).value).append('"');
+        } else if (expression instanceof Ast.KeywordConstant) {
+            sb.append(((Ast.KeywordConstant) expression).keyword);
+        } else if (expression instanceof Ast.VarRef) {
+            sb.append(((Ast.VarRef) expression).name);
+        } else if (expression instanceof Ast.ArrayRef) {
+            Ast.ArrayRef arrayRef = (Ast.ArrayRef) expression;
+            sb.append(arrayRef.name).append('[');
+            appendSource(sb, arrayRef.index);
+            sb.append(']');
+        } else if (expression instanceof Ast.SubroutineCall) {
+            Ast.SubroutineCall call = (Ast.SubroutineCall) expression;
+            if (call.target != null) sb.append(call.target).append('.');
+            sb.append(call.name).append('(');
+            for (int i = 0; i < call.arguments.size(); i++) {
+                if (i > 0) sb.append(", ");
+                appendSource(sb, call.arguments.get(i));
+            }
+            sb.append(')');
+        } else if (expression instanceof Ast.ParenthesizedExpression) {
+            sb.append('(');
+            appendSource(sb, ((Ast.ParenthesizedExpression) expression).expression);
+            sb.append(')');
+        } else if (expression instanceof Ast.UnaryExpression) {
+            sb.append(((Ast.UnaryExpression) expression).op);
+            appendSource(sb, ((Ast.UnaryExpression) expression).term);
+        }
+    }
+
+    public String getReport() {
+        StringBuilder sb = new StringBuilder("loop invariants: hoisted ").append(hoisted.size())
+                .append(" expression(s) out of ").append(loops).append(" loop(s)");
+        if (!hoisted.isEmpty()) sb.append(": ").append(String.join(", ", hoisted));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,13 @@
+package ru.riverx;
+
+/**
+ * Receives the parse tree from {@link XmlPrinter}: elements are opened and closed
+ * around the grammar rules and every consumed token is passed in between.
+ */
+public interface ParseTreeListener {
+    void enterElement(String name);
+
+    void exitElement(String name);
+
+    void visitToken(Token token);
+}
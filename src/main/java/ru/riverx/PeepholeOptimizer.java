@@ -0,0 +1,200 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrites the code of each function with pattern rules until none of them applies.
+ */
+public class PeepholeOptimizer extends FunctionPass {
+    public PeepholeOptimizer(VMOutput output) {
+        super(output);
+    }
+
+    @Override
+    public String getName() { return "peephole"; }
+
+    @Override
+    public String getReport() {
+        return "peephole removed " + (getInstructionsIn() - getInstructionsOut()) + " of " + getInstructionsIn()
+                + " VM instructions";
+    }
+
+    /**
+     * Applies the rules to the code of one function until it does not change anymore.
+     */
+    @Override
+    protected List<VMInstruction> optimize(List<VMInstruction> function) {
+        List<VMInstruction> code = function;
+        boolean changed = true;
+        while (changed) {
+            int size = code.size();
+            code = foldConstantConditions(code);
+            code = removeDoubleNegations(code);
+            code = invertBranches(code);
+            code = removeJumpsToNextLabel(code);
+            code = removeUnreachableCode(code);
+            code = removeUnusedLabels(code);
+            code = removePushPopPairs(code);
+            changed = code.size() != size;
+        }
+        return code;
+    }
+
+    /**
+     * push constant c followed by neg/not is evaluated (true is 'push constant 1, neg'). Before an if-goto the jump
+     * is decided: never taken is dropped, always taken becomes goto. Otherwise the value is pushed in fewer
+     * commands if possible.
+     */
+    private static List<VMInstruction> foldConstantConditions(List<VMInstruction> code) {
+        List<VMInstruction> result = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            VMInstruction instruction = code.get(i);
+            if (!instruction.isPush(Segment.constant)) {
+                result.add(instruction);
+                continue;
+            }
+            int value = instruction.getNumber();
+            int end = i + 1;
+            for (; end < code.size(); end++) {
+                VMInstruction next = code.get(end);
+                if (next.isArithmetic(ArithmeticCommand.NEG)) value = (short) -value;
+                else if (next.isArithmetic(ArithmeticCommand.NOT)) value = (short) ~value;
+                else break;
+            }
+            if (end < code.size() && code.get(end).is(VMInstruction.Op.IF_GOTO)) {
+                if (value != 0) result.add(VMInstruction.gotoLabel(code.get(end).getName()));
+                i = end;
+                continue;
+            }
+            List<VMInstruction> shortest = VMInstruction.pushValue(value);
+            if (shortest.size() < end - i) {
+                result.addAll(shortest);
+                i = end - 1;
+            } else {
+                result.add(instruction);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * not, not and neg, neg cancel out.
+     */
+    private static List<VMInstruction> removeDoubleNegations(List<VMInstruction> code) {
+        List<VMInstruction> result = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            VMInstruction instruction = code.get(i);
+            if (i + 1 < code.size() && instruction.is(VMInstruction.Op.ARITHMETIC) && instruction.equals(code.get(i + 1))
+                    && (instruction.getCommand() == ArithmeticCommand.NOT || instruction.getCommand() == ArithmeticCommand.NEG)) {
+                i++;
+                continue;
+            }
+            result.add(instruction);
+        }
+        return result;
+    }
+
+    /**
+     * 'not, if-goto L1, goto L2, label L1' jumps to L2 when the condition holds, so it becomes 'if-goto L2, label L1'.
+     */
+    private static List<VMInstruction> invertBranches(List<VMInstruction> code) {
+        List<VMInstruction> result = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            VMInstruction instruction = code.get(i);
+            if (i + 3 < code.size() && instruction.isArithmetic(ArithmeticCommand.NOT)
+                    && code.get(i + 1).is(VMInstruction.Op.IF_GOTO) && code.get(i + 2).is(VMInstruction.Op.GOTO)
+                    && code.get(i + 3).is(VMInstruction.Op.LABEL)
+                    && code.get(i + 3).getName().equals(code.get(i + 1).getName())) {
+                result.add(VMInstruction.ifGoto(code.get(i + 2).getName()));
+                i += 2;
+                continue;
+            }
+            result.add(instruction);
+        }
+        return result;
+    }
+
+    /**
+     * A goto to one of the labels that directly follow it only falls through.
+     */
+    private static List<VMInstruction> removeJumpsToNextLabel(List<VMInstruction> code) {
+        List<VMInstruction> result = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            VMInstruction instruction = code.get(i);
+            if (instruction.is(VMInstruction.Op.GOTO) && isFollowedByLabel(code, i + 1, instruction.getName())) {
+                continue;
+            }
+            result.add(instruction);
+        }
+        return result;
+    }
+
+    private static boolean isFollowedByLabel(List<VMInstruction> code, int from, String label) {
+        for (int i = from; i < code.size() && code.get(i).is(VMInstruction.Op.LABEL); i++) {
+            if (code.get(i).getName().equals(label)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Nothing after goto or return runs until the next label.
+     */
+    private static List<VMInstruction> removeUnreachableCode(List<VMInstruction> code) {
+        List<VMInstruction> result = new ArrayList<>(code.size());
+        boolean reachable = true;
+        for (VMInstruction instruction : code) {
+            if (instruction.is(VMInstruction.Op.LABEL) || instruction.is(VMInstruction.Op.FUNCTION)) {
+                reachable = true;
+            }
+            if (reachable) {
+                result.add(instruction);
+            }
+            if (instruction.is(VMInstruction.Op.GOTO) || instruction.is(VMInstruction.Op.RETURN)) {
+                reachable = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Labels are local to their function, so a label which no jump of the function refers to can go.
+     */
+    private static List<VMInstruction> removeUnusedLabels(List<VMInstruction> code) {
+        Set<String> used = new HashSet<>();
+        for (VMInstruction instruction : code) {
+            if (instruction.is(VMInstruction.Op.GOTO) || instruction.is(VMInstruction.Op.IF_GOTO)) {
+                used.add(instruction.getName());
+            }
+        }
+        List<VMInstruction> result = new ArrayList<>(code.size());
+        for (VMInstruction instruction : code) {
+            if (!instruction.is(VMInstruction.Op.LABEL) || used.contains(instruction.getName())) {
+                result.add(instruction);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Popping a value right back where it was pushed from changes nothing.
+     */
+    private static List<VMInstruction> removePushPopPairs(List<VMInstruction> code) {
+        List<VMInstruction> result = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            VMInstruction instruction = code.get(i);
+            if (i + 1 < code.size() && instruction.is(VMInstruction.Op.PUSH) && instruction.getSegment() != Segment.constant) {
+                VMInstruction next = code.get(i + 1);
+                if (next.is(VMInstruction.Op.POP) && next.getSegment() == instruction.getSegment()
+                        && next.getNumber() == instruction.getNumber()) {
+                    i++;
+                    continue;
+                }
+            }
+            result.add(instruction);
+        }
+        return result;
+    }
+}
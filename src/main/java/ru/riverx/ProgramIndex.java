@@ -0,0 +1,218 @@
+package ru.riverx;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Declarations of every class of a program: its subroutines with their kind, return type and parameter count.
+ * Built from the syntax trees of a first pass over the folder, so calls between classes can be checked
+ * and dispatched by what the callee really is. Classes outside the index, like the OS, are not checked.
+ * The index also knows which classes each class refers to, so a build cache can tell when the declarations
+ * a compiled class relied on have changed.
+ */
+public class ProgramIndex {
+    private final Map<String, Map<String, Subroutine>> classes = new HashMap<>();
+    private final Map<String, Set<String>> dependencies = new HashMap<>();
+
+    public static final class Subroutine {
+        private final String className;
+        private final String kind;
+        private final String returnType;
+        private final String name;
+        private final int parameterCount;
+
+        private Subroutine(String className, String kind, String returnType, String name, int parameterCount) {
+            this.className = className;
+            this.kind = kind;
+            this.returnType = returnType;
+            this.name = name;
+            this.parameterCount = parameterCount;
+        }
+
+        public String getClassName() { return className; }
+        public String getKind() { return kind; }
+        public String getName() { return name; }
+        public String getReturnType() { return returnType; }
+        public int getParameterCount() { return parameterCount; }
+        public boolean isMethod() { return kind.equals("method"); }
+        public String getFullName() { return className + "." + name; }
+
+        private String describe() {
+            return kind + ":" + returnType + ":" + name + ":" + parameterCount;
+        }
+    }
+
+    /**
+     * Adds or replaces the declarations of the class.
+     */
+    public void add(Ast.ClassDec classDec) {
+        addEntry(entryOf(classDec));
+    }
+
+    /**
+     * @return the declarations and the referenced classes of the class as one line of text,
+     * "Name|kind:type:name:count,...|Class,...", which the build cache keeps instead of parsing the source again
+     */
+    public static String entryOf(Ast.ClassDec classDec) {
+        StringBuilder sb = new StringBuilder(classDec.name).append('|');
+        for (int i = 0; i < classDec.subroutines.size(); i++) {
+            Ast.SubroutineDec dec = classDec.subroutines.get(i);
+            if (i > 0) sb.append(',');
+            sb.append(dec.kind).append(':').append(dec.returnType).append(':').append(dec.name).append(':')
+                    .append(dec.parameters.size());
+        }
+        return sb.append('|').append(String.join(",", referencedClasses(classDec))).toString();
+    }
+
+    /**
+     * Adds or replaces the declarations of a class from a line of {@link #entryOf}.
+     */
+    public void addEntry(String entry) {
+        String[] parts = entry.split("\\|", -1);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Malformed index entry: " + entry);
+        }
+        String className = parts[0];
+        Map<String, Subroutine> subroutines = new HashMap<>();
+        for (String declaration : split(parts[1])) {
+            String[] fields = declaration.split(":");
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("Malformed index entry: " + entry);
+            }
+            Subroutine subroutine = new Subroutine(className, fields[0], fields[1], fields[2],
+                    Integer.parseInt(fields[3]));
+            if (subroutines.put(subroutine.name, subroutine) != null) {
+                throw new RuntimeException("Subroutine " + className + "." + subroutine.name + " is declared twice");
+            }
+        }
+        classes.put(className, subroutines);
+        dependencies.put(className, new TreeSet<>(split(parts[2])));
+    }
+
+    private static List<String> split(String list) {
+        return list.isEmpty() ? Collections.emptyList() : Arrays.asList(list.split(","));
+    }
+
+    public boolean hasClass(String className) {
+        return classes.containsKey(className);
+    }
+
+    /**
+     * @return the subroutine or null if the class is not indexed or has no such subroutine
+     */
+    public Subroutine find(String className, String name) {
+        Map<String, Subroutine> subroutines = classes.get(className);
+        return subroutines != null ? subroutines.get(name) : null;
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    /**
+     * @return the declarations of every class the class may call, as text; the code of the class depends on
+     * them, so it has to be compiled again when this changes
+     */
+    public String dependencyKey(String className) {
+        Set<String> classNames = dependencies.get(className);
+        if (classNames == null) return "";
+        StringBuilder sb = new StringBuilder();
+        for (String name : classNames) {
+            sb.append(name).append('{').append(declarationsOf(name)).append('}');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the classes which were added, removed or declare other subroutines than in the previous index
+     */
+    public Set<String> changedClasses(ProgramIndex previous) {
+        Set<String> names = new TreeSet<>(classes.keySet());
+        names.addAll(previous.classes.keySet());
+        names.removeIf(name -> hasClass(name) && previous.hasClass(name)
+                && declarationsOf(name).equals(previous.declarationsOf(name)));
+        return names;
+    }
+
+    /**
+     * @return true if the class refers to one of the classes
+     */
+    public boolean dependsOn(String className, Set<String> classNames) {
+        Set<String> referenced = dependencies.get(className);
+        return referenced != null && !Collections.disjoint(referenced, classNames);
+    }
+
+    private String declarationsOf(String className) {
+        Map<String, Subroutine> subroutines = classes.get(className);
+        if (subroutines == null) return "";
+        StringBuilder sb = new StringBuilder();
+        for (Subroutine subroutine : new TreeMap<>(subroutines).values()) {
+            sb.append(subroutine.describe()).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Classes which are called by name or are the type of a variable, other than the class itself.
+     */
+    private static Set<String> referencedClasses(Ast.ClassDec classDec) {
+        Set<String> names = new TreeSet<>();
+        for (Ast.VarDec varDec : classDec.classVarDecs) names.add(varDec.type);
+        for (Ast.SubroutineDec subroutine : classDec.subroutines) {
+            for (Ast.Parameter parameter : subroutine.parameters) names.add(parameter.type);
+            for (Ast.VarDec varDec : subroutine.varDecs) names.add(varDec.type);
+            collectCallTargets(subroutine.statements, names);
+        }
+        names.remove(classDec.name);
+        return names;
+    }
+
+    private static void collectCallTargets(List<Ast.Statement> statements, Set<String> names) {
+        for (Ast.Statement statement : statements) {
+            if (statement instanceof Ast.LetStatement) {
+                Ast.LetStatement let = (Ast.LetStatement) statement;
+                if (let.index != null) collectCallTargets(let.index, names);
+                collectCallTargets(let.value, names);
+            } else if (statement instanceof Ast.IfStatement) {
+                Ast.IfStatement ifStatement = (Ast.IfStatement) statement;
+                collectCallTargets(ifStatement.condition, names);
+                collectCallTargets(ifStatement.thenStatements, names);
+                if (ifStatement.elseStatements != null) collectCallTargets(ifStatement.elseStatements, names);
+            } else if (statement instanceof Ast.WhileStatement) {
+                collectCallTargets(((Ast.WhileStatement) statement).condition, names);
+                collectCallTargets(((Ast.WhileStatement) statement).statements, names);
+            } else if (statement instanceof Ast.DoStatement) {
+                collectCallTargets(((Ast.DoStatement) statement).call, names);
+            } else if (statement instanceof Ast.ReturnStatement) {
+                Ast.Expression value = ((Ast.ReturnStatement) statement).value;
+                if (value != null) collectCallTargets(value, names);
+            }
+        }
+    }
+
+    private static void collectCallTargets(Ast.Expression expression, Set<String> names) {
+        while (expression instanceof Ast.BinaryExpression) { // Long chains are walked without recursion.
+            collectCallTargets(((Ast.BinaryExpression) expression).left, names);
+            expression = ((Ast.BinaryExpression) expression).right;
+        }
+        if (expression instanceof Ast.SubroutineCall) {
+            Ast.SubroutineCall call = (Ast.SubroutineCall) expression;
+            if (call.target != null) names.add(call.target); // A variable name is harmless, no class has it.
+            for (Ast.Expression argument : call.arguments) {
+                collectCallTargets(argument, names);
+            }
+        } else if (expression instanceof Ast.ArrayRef) {
+            collectCallTargets(((Ast.ArrayRef) expression).index, names);
+        } else if (expression instanceof Ast.ParenthesizedExpression) {
+            collectCallTargets(((Ast.ParenthesizedExpression) expression).expression, names);
+        } else if (expression instanceof Ast.UnaryExpression) {
+            collectCallTargets(((Ast.UnaryExpression) expression).term, names);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package ru.riverx;
 
+import java.util.Locale;
+
 public enum Segment {
     constant,
     argument,
@@ -8,5 +10,16 @@ public enum Segment {
     THIS,
     that,
     pointer,
-    temp
+    temp;
+
+    private final String vmName;
+
+    Segment() {
+        this.vmName = name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return segment name as written in VM code
+     */
+    public String getVmName() { return vmName; }
 }
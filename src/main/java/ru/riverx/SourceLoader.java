@@ -0,0 +1,39 @@
+package ru.riverx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Loads .jack sources with a single decode into a char buffer: big files are memory-mapped,
+ * small ones are read with one channel read, because mapping costs more than it saves for them.
+ */
+public class SourceLoader {
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    private SourceLoader() {}
+
+    public static CharBuffer load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too big: " + path);
+            }
+            ByteBuffer bytes;
+            if (size >= MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                    // Keep reading until the buffer is full.
+                }
+                bytes.flip();
+            }
+            return StandardCharsets.UTF_8.newDecoder().decode(bytes);
+        }
+    }
+}
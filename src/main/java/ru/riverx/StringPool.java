@@ -0,0 +1,130 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * String literals which are built once instead of on every use, for --strings.
+ * <p>
+ * With the class scope every class keeps its literals in static variables after its own ones and builds them
+ * in the generated function Class.$strings. With the program scope the literals of all classes are numbered
+ * in the index pass and kept in one array, built by StringPool.init of the generated StringPool.vm; every class
+ * keeps the array in one static variable. A subroutine which uses literals checks first that they are built.
+ * Literals become shared objects, so the pool is only for programs which don't change or dispose them.
+ */
+public class StringPool {
+    public enum Scope { CLASS, PROGRAM }
+
+    /** Class of the generated file with the literals of the whole program. */
+    public static final String PROGRAM_CLASS = "StringPool";
+    private final Scope scope;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    public StringPool(Scope scope) {
+        this.scope = scope;
+    }
+
+    public Scope getScope() { return scope; }
+
+    /**
+     * @return index of the literal, the same for equal literals
+     */
+    public int add(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = strings.size();
+            ids.put(value, id);
+            strings.add(value);
+        }
+        return id;
+    }
+
+    public void addAll(Ast.ClassDec classDec) {
+        for (Ast.SubroutineDec subroutine : classDec.subroutines) {
+            collect(subroutine.statements, string -> add(string.value));
+        }
+    }
+
+    /**
+     * @return index of a literal added before
+     */
+    public int indexOf(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            throw new RuntimeException("String literal \"" + value + "\" is missing from the string pool");
+        }
+        return id;
+    }
+
+    public List<String> getStrings() {
+        return Collections.unmodifiableList(strings);
+    }
+
+    public boolean isEmpty() {
+        return strings.isEmpty();
+    }
+
+    public void clear() {
+        ids.clear();
+        strings.clear();
+    }
+
+    public static boolean usesStrings(Ast.SubroutineDec subroutine) {
+        boolean[] found = new boolean[1];
+        collect(subroutine.statements, string -> found[0] = true);
+        return found[0];
+    }
+
+    private interface Visitor {
+        void visit(Ast.StringConstant string);
+    }
+
+    private static void collect(List<Ast.Statement> statements, Visitor visitor) {
+        for (Ast.Statement statement : statements) {
+            if (statement instanceof Ast.LetStatement) {
+                Ast.LetStatement let = (Ast.LetStatement) statement;
+                if (let.index != null) collect(let.index, visitor);
+                collect(let.value, visitor);
+            } else if (statement instanceof Ast.IfStatement) {
+                Ast.IfStatement ifStatement = (Ast.IfStatement) statement;
+                collect(ifStatement.condition, visitor);
+                collect(ifStatement.thenStatements, visitor);
+                if (ifStatement.elseStatements != null) collect(ifStatement.elseStatements, visitor);
+            } else if (statement instanceof Ast.WhileStatement) {
+                Ast.WhileStatement whileStatement = (Ast.WhileStatement) statement;
+                collect(whileStatement.condition, visitor);
+                collect(whileStatement.statements, visitor);
+            } else if (statement instanceof Ast.DoStatement) {
+                collect(((Ast.DoStatement) statement).call, visitor);
+            } else if (statement instanceof Ast.ReturnStatement) {
+                Ast.ReturnStatement returnStatement = (Ast.ReturnStatement) statement;
+                if (returnStatement.value != null) collect(returnStatement.value, visitor);
+            }
+        }
+    }
+
+    private static void collect(Ast.Expression expression, Visitor visitor) {
+        while (expression instanceof Ast.BinaryExpression) { // Long chains are walked without recursion.
+            Ast.BinaryExpression binary = (Ast.BinaryExpression) expression;
+            collect(binary.left, visitor);
+            expression = binary.right;
+        }
+        if (expression instanceof Ast.StringConstant) {
+            visitor.visit((Ast.StringConstant) expression);
+        } else if (expression instanceof Ast.ArrayRef) {
+            collect(((Ast.ArrayRef) expression).index, visitor);
+        } else if (expression instanceof Ast.SubroutineCall) {
+            for (Ast.Expression argument : ((Ast.SubroutineCall) expression).arguments) {
+                collect(argument, visitor);
+            }
+        } else if (expression instanceof Ast.ParenthesizedExpression) {
+            collect(((Ast.ParenthesizedExpression) expression).expression, visitor);
+        } else if (expression instanceof Ast.UnaryExpression) {
+            collect(((Ast.UnaryExpression) expression).term, visitor);
+        }
+    }
+}
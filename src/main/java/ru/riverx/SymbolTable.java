@@ -1,28 +1,48 @@
 package ru.riverx;
 
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Class and subroutine scopes of one compilation. Each scope is a hash map, so a lookup is a single probe per scope.
+ * A table belongs to one compilation, so the maps are not synchronized.
+ */
 public class SymbolTable {
-    private final Hashtable<String, Variable> classLevel;
-    private final Hashtable<String, Variable> subroutineLevel;
+    private final Map<String, Variable> classLevel;
+    private final Map<String, Variable> subroutineLevel;
+    // Running indices live here rather than in Variable so that every compilation owns its own counters.
+    private int staticCount;
+    private int fieldCount;
+    private int argumentCount;
+    private int localCount;
 
     public SymbolTable() {
-        this.classLevel = new Hashtable<>();
-        this.subroutineLevel = new Hashtable<>();
+        this.classLevel = new HashMap<>();
+        this.subroutineLevel = new HashMap<>();
     }
 
     public void defineClass(String name, String type, String kind) {
         SymbolKind _kind = getKindFromString(kind);
-        Variable var = new Variable(type, _kind);
+        Variable var = new Variable(type, _kind, nextIndex(_kind));
         classLevel.put(name, var);
     }
 
     public void defineSubroutine(String name, String type, String kind) {
         SymbolKind _kind = getKindFromString(kind);
-        Variable var = new Variable(type, _kind);
+        Variable var = new Variable(type, _kind, nextIndex(_kind));
         subroutineLevel.put(name, var);
     }
 
+    private int nextIndex(SymbolKind kind) {
+        switch (kind) {
+            case STATIC: return staticCount++;
+            case FIELD: return fieldCount++;
+            case ARG: return argumentCount++;
+            case VAR: return localCount++;
+            default: return 0;
+        }
+    }
+
     private SymbolKind getKindFromString(String kind) {
         switch (kind) {
             case "field": return SymbolKind.FIELD;
@@ -34,39 +54,44 @@ public class SymbolTable {
         }
     }
 
+    /**
+     * @return the variable, subroutine scope first, or null if the name is not a variable (for example a class name)
+     */
+    public Variable lookup(String name) {
+        Variable var = subroutineLevel.get(name);
+        return var != null ? var : classLevel.get(name);
+    }
+
+    /**
+     * Lookup of a name which has to be a variable.
+     */
     public Variable findVariable(String name) {
-        for (String n : subroutineLevel.keySet()) {
-            if (n.equals(name)) {
-                return subroutineLevel.get(n);
-            }
-        }
-        for (String n : classLevel.keySet()) {
-            if (n.equals(name)) {
-                return classLevel.get(n);
-            }
+        Variable var = lookup(name);
+        if (var == null) {
+            throw new RuntimeException("Undefined variable: "+ name);
         }
-        throw new RuntimeException("Undefined variable: "+ name);
+        return var;
     }
 
     public void resetKindCountSubroutine() {
-        Variable.argumentCount = 0;
-        Variable.localCount = 0;
+        argumentCount = 0;
+        localCount = 0;
         subroutineLevel.clear();
     }
 
     public void resetKindCountClass() {
-        Variable.staticCount = 0;
-        Variable.fieldCount = 0;
+        staticCount = 0;
+        fieldCount = 0;
         classLevel.clear();
         resetKindCountSubroutine();
     }
 
-    private int varCount(SymbolKind kind) {
+    public int varCount(SymbolKind kind) {
         switch (kind) {
-            case STATIC: return Variable.staticCount;
-            case FIELD: return Variable.fieldCount;
-            case ARG: return Variable.argumentCount;
-            case VAR: return Variable.localCount;
+            case STATIC: return staticCount;
+            case FIELD: return fieldCount;
+            case ARG: return argumentCount;
+            case VAR: return localCount;
             default: throw new IllegalArgumentException("There is no kind: " + kind);
         }
     }
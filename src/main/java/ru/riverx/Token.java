@@ -1,18 +1,128 @@
 package ru.riverx;
 
+/**
+ * Keywords and symbols are shared singletons. Identifiers and constants keep a window into the source
+ * buffer and turn it into a String only when the value is asked for.
+ */
 public class Token {
-    private final String value;
+    private static final String SYMBOLS = JackTokenizer.getSymbols();
+    private static final Token[] SYMBOL_TOKENS = new Token[SYMBOLS.length()];
+    static final Token CLASS = new Token("class", TokenType.keyword);
+    static final Token CONSTRUCTOR = new Token("constructor", TokenType.keyword);
+    static final Token FUNCTION = new Token("function", TokenType.keyword);
+    static final Token METHOD = new Token("method", TokenType.keyword);
+    static final Token FIELD = new Token("field", TokenType.keyword);
+    static final Token STATIC = new Token("static", TokenType.keyword);
+    static final Token VAR = new Token("var", TokenType.keyword);
+    static final Token INT = new Token("int", TokenType.keyword);
+    static final Token CHAR = new Token("char", TokenType.keyword);
+    static final Token BOOLEAN = new Token("boolean", TokenType.keyword);
+    static final Token VOID = new Token("void", TokenType.keyword);
+    static final Token TRUE = new Token("true", TokenType.keyword);
+    static final Token FALSE = new Token("false", TokenType.keyword);
+    static final Token NULL = new Token("null", TokenType.keyword);
+    static final Token THIS = new Token("this", TokenType.keyword);
+    static final Token LET = new Token("let", TokenType.keyword);
+    static final Token DO = new Token("do", TokenType.keyword);
+    static final Token IF = new Token("if", TokenType.keyword);
+    static final Token ELSE = new Token("else", TokenType.keyword);
+    static final Token WHILE = new Token("while", TokenType.keyword);
+    static final Token RETURN = new Token("return", TokenType.keyword);
+
+    static {
+        for (int i = 0; i < SYMBOLS.length(); i++) {
+            SYMBOL_TOKENS[i] = new Token(String.valueOf(SYMBOLS.charAt(i)), TokenType.symbol);
+        }
+    }
+
     private final TokenType type;
+    private final char[] source;
+    private final int offset;
+    private final int length;
+    private String value;
+    private String xml; // Built once, so shared keyword and symbol tokens format their xml only once.
 
     public Token(String value, TokenType type) {
         this.value = value;
         this.type = type;
+        this.source = null;
+        this.offset = 0;
+        this.length = value.length();
     }
 
-    public String getValue() { return value; }
+    Token(TokenType type, char[] source, int offset, int length) {
+        this.type = type;
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return shared token of the symbol or null if the char is not a symbol
+     */
+    static Token symbol(char symbol) {
+        int index = SYMBOLS.indexOf(symbol);
+        return index != -1 ? SYMBOL_TOKENS[index] : null;
+    }
+
+    /**
+     * Switches on the first char (and the second one where two keywords of the same length collide)
+     * so every lookup compares with at most one keyword.
+     * @return shared token of the keyword or null if the word is an identifier
+     */
+    static Token keyword(char[] text, int offset, int length) {
+        Token candidate;
+        switch (text[offset]) {
+            case 'b': candidate = BOOLEAN; break;
+            case 'c': candidate = length == 5 ? CLASS : length == 4 ? CHAR : CONSTRUCTOR; break;
+            case 'd': candidate = DO; break;
+            case 'e': candidate = ELSE; break;
+            case 'f': {
+                if (length == 8) candidate = FUNCTION;
+                else candidate = length > 1 && text[offset + 1] == 'a' ? FALSE : FIELD;
+            } break;
+            case 'i': candidate = length == 2 ? IF : INT; break;
+            case 'l': candidate = LET; break;
+            case 'm': candidate = METHOD; break;
+            case 'n': candidate = NULL; break;
+            case 'r': candidate = RETURN; break;
+            case 's': candidate = STATIC; break;
+            case 't': candidate = length > 1 && text[offset + 1] == 'h' ? THIS : TRUE; break;
+            case 'v': candidate = length == 3 ? VAR : VOID; break;
+            case 'w': candidate = WHILE; break;
+            default: return null;
+        }
+        return candidate.matches(text, offset, length) ? candidate : null;
+    }
+
+    static Token keyword(String word) {
+        return keyword(word.toCharArray(), 0, word.length());
+    }
+
+    private boolean matches(char[] text, int offset, int length) {
+        if (this.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != text[offset + i]) return false;
+        }
+        return true;
+    }
+
+    public String getValue() {
+        if (value == null) {
+            value = new String(source, offset, length);
+        }
+        return value;
+    }
     public TokenType getType() { return type; }
-    public String toString() { return String.format("[%s][%s]", type, value); }
+    public String toString() { return String.format("[%s][%s]", type, getValue()); }
     public String toXmlString() {
+        if (xml == null) {
+            xml = formatXml(getValue());
+        }
+        return xml;
+    }
+
+    private String formatXml(String value) {
         if (value.equals("<"))
             return String.format("<%s> &lt; </%s>",type, type);
         if (value.equals(">"))
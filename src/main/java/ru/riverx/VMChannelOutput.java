@@ -0,0 +1,206 @@
+package ru.riverx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams VM code straight into a file. Commands are encoded into a per-thread byte buffer, which is
+ * flushed to the channel whenever it fills up, so memory stays flat however big the class is.
+ * Segment and command names are encoded once up front.
+ * The code goes to a temporary file which replaces the target only on {@link #finish()},
+ * so a failed compilation never leaves a half-written .vm file.
+ */
+public class VMChannelOutput implements VMOutput, Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_NUMBER_LENGTH = 11;
+    private static final int MAX_CHAR_LENGTH = 3; // UTF-8 bytes of a char outside of the ASCII range.
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final byte[][] PUSH = new byte[Segment.values().length][];
+    private static final byte[][] POP = new byte[Segment.values().length][];
+    private static final byte[][] ARITHMETIC = new byte[ArithmeticCommand.values().length][];
+    private static final byte[] LABEL = bytes("label ");
+    private static final byte[] GOTO = bytes("goto ");
+    private static final byte[] IF_GOTO = bytes("if-goto ");
+    private static final byte[] CALL = bytes("call ");
+    private static final byte[] FUNCTION = bytes("function ");
+    private static final byte[] RETURN = bytes("return");
+
+    static {
+        for (Segment segment : Segment.values()) {
+            PUSH[segment.ordinal()] = bytes("push " + segment.getVmName() + " ");
+            POP[segment.ordinal()] = bytes("pop " + segment.getVmName() + " ");
+        }
+        for (ArithmeticCommand command : ArithmeticCommand.values()) {
+            ARITHMETIC[command.ordinal()] = bytes(command.getVmName());
+        }
+    }
+
+    private final Path target;
+    private final Path tmp;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private boolean finished;
+
+    public VMChannelOutput(Path target) throws IOException {
+        this.target = target;
+        this.tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        this.buffer = BUFFERS.get();
+        this.buffer.clear();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void writePush(Segment segment, int index) {
+        line(PUSH[segment.ordinal()], index);
+    }
+
+    @Override
+    public void writePop(Segment segment, int index) {
+        line(POP[segment.ordinal()], index);
+    }
+
+    @Override
+    public void writeArithmetic(ArithmeticCommand command) {
+        line(ARITHMETIC[command.ordinal()]);
+    }
+
+    @Override
+    public void writeLabel(String label) {
+        line(LABEL, label);
+    }
+
+    @Override
+    public void writeGoto(String label) {
+        line(GOTO, label);
+    }
+
+    @Override
+    public void writeIf(String label) {
+        line(IF_GOTO, label);
+    }
+
+    @Override
+    public void writeCall(String name, int nArgs) {
+        line(CALL, name, nArgs);
+    }
+
+    @Override
+    public void writeFunction(String name, int nLocals) {
+        line(FUNCTION, name, nLocals);
+    }
+
+    @Override
+    public void writeReturn() {
+        line(RETURN);
+    }
+
+    private void line(byte[] command) {
+        ensure(command.length + 1);
+        buffer.put(command).put((byte) '\n');
+    }
+
+    private void line(byte[] prefix, int number) {
+        ensure(prefix.length + MAX_NUMBER_LENGTH + 1);
+        buffer.put(prefix);
+        putNumber(number);
+        buffer.put((byte) '\n');
+    }
+
+    private void line(byte[] prefix, String name) {
+        ensure(prefix.length + name.length() * MAX_CHAR_LENGTH + 1);
+        buffer.put(prefix);
+        putName(name);
+        buffer.put((byte) '\n');
+    }
+
+    private void line(byte[] prefix, String name, int number) {
+        ensure(prefix.length + name.length() * MAX_CHAR_LENGTH + MAX_NUMBER_LENGTH + 2);
+        buffer.put(prefix);
+        putName(name);
+        buffer.put((byte) ' ');
+        putNumber(number);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Names are Jack identifiers, which are nearly always plain ASCII and are copied char by char.
+     */
+    private void putName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) {
+                buffer.put(name.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    private void putNumber(int number) {
+        if (number < 0) {
+            buffer.put((byte) '-');
+            number = -number;
+        }
+        int divider = 1;
+        while (number / divider >= 10) divider *= 10;
+        for (; divider > 0; divider /= 10) {
+            buffer.put((byte) ('0' + number / divider % 10));
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            flush();
+            if (buffer.remaining() < bytes) {
+                throw new IllegalArgumentException("VM command is longer than the output buffer: " + bytes + " bytes");
+            }
+        }
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes the rest of the buffer and moves the file into place.
+     */
+    public void finish() throws IOException {
+        flush();
+        channel.close();
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        finished = true;
+    }
+
+    /**
+     * Drops the temporary file if the output was not finished.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            channel.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
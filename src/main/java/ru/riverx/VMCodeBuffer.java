@@ -0,0 +1,62 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps VM code in memory, one command per line.
+ */
+public class VMCodeBuffer implements VMOutput {
+    private final List<String> lines;
+
+    public VMCodeBuffer() {
+        this.lines = new ArrayList<>();
+    }
+
+    public List<String> getLines() { return lines; }
+
+    @Override
+    public void writePush(Segment segment, int index) {
+        lines.add("push " + segment.getVmName() + " " + index);
+    }
+
+    @Override
+    public void writePop(Segment segment, int index) {
+        lines.add("pop " + segment.getVmName() + " " + index);
+    }
+
+    @Override
+    public void writeArithmetic(ArithmeticCommand command) {
+        lines.add(command.getVmName());
+    }
+
+    @Override
+    public void writeLabel(String label) {
+        lines.add("label " + label);
+    }
+
+    @Override
+    public void writeGoto(String label) {
+        lines.add("goto " + label);
+    }
+
+    @Override
+    public void writeIf(String label) {
+        lines.add("if-goto " + label);
+    }
+
+    @Override
+    public void writeCall(String name, int nArgs) {
+        lines.add("call " + name + " " + nArgs);
+    }
+
+    @Override
+    public void writeFunction(String name, int nLocals) {
+        lines.add("function " + name + " " + nLocals);
+    }
+
+    @Override
+    public void writeReturn() {
+        lines.add("return");
+    }
+}
@@ -0,0 +1,206 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One VM command, for passes which have to look at the code before it is written.
+ */
+public final class VMInstruction {
+    public enum Op {
+        PUSH,
+        POP,
+        ARITHMETIC,
+        LABEL,
+        GOTO,
+        IF_GOTO,
+        CALL,
+        FUNCTION,
+        RETURN
+    }
+
+    private final Op op;
+    private final Segment segment;
+    private final ArithmeticCommand command;
+    private final String name;
+    private final int number;
+
+    private VMInstruction(Op op, Segment segment, ArithmeticCommand command, String name, int number) {
+        this.op = op;
+        this.segment = segment;
+        this.command = command;
+        this.name = name;
+        this.number = number;
+    }
+
+    public static VMInstruction push(Segment segment, int index) {
+        return new VMInstruction(Op.PUSH, segment, null, null, index);
+    }
+
+    public static VMInstruction pop(Segment segment, int index) {
+        return new VMInstruction(Op.POP, segment, null, null, index);
+    }
+
+    public static VMInstruction arithmetic(ArithmeticCommand command) {
+        return new VMInstruction(Op.ARITHMETIC, null, command, null, 0);
+    }
+
+    public static VMInstruction label(String label) {
+        return new VMInstruction(Op.LABEL, null, null, label, 0);
+    }
+
+    public static VMInstruction gotoLabel(String label) {
+        return new VMInstruction(Op.GOTO, null, null, label, 0);
+    }
+
+    public static VMInstruction ifGoto(String label) {
+        return new VMInstruction(Op.IF_GOTO, null, null, label, 0);
+    }
+
+    public static VMInstruction call(String name, int nArgs) {
+        return new VMInstruction(Op.CALL, null, null, name, nArgs);
+    }
+
+    public static VMInstruction function(String name, int nLocals) {
+        return new VMInstruction(Op.FUNCTION, null, null, name, nLocals);
+    }
+
+    public static VMInstruction ret() {
+        return new VMInstruction(Op.RETURN, null, null, null, 0);
+    }
+
+    /**
+     * push constant only takes 0..32767, so other 16-bit values are pushed as 'push constant ~v, not'
+     * or 'push constant -v, neg'.
+     * @return shortest code which pushes the value
+     */
+    public static List<VMInstruction> pushValue(int value) {
+        List<VMInstruction> code = new ArrayList<>(2);
+        if (value >= 0) {
+            code.add(push(Segment.constant, value));
+        } else if (~value <= Short.MAX_VALUE) {
+            code.add(push(Segment.constant, ~value));
+            code.add(arithmetic(ArithmeticCommand.NOT));
+        } else {
+            code.add(push(Segment.constant, -value));
+            code.add(arithmetic(ArithmeticCommand.NEG));
+        }
+        return code;
+    }
+
+    /**
+     * Reads one line of VM code, for .vm files which come without a Jack source, like the OS.
+     * @return the instruction or null if the line is empty or a comment
+     */
+    public static VMInstruction parse(String line) {
+        int comment = line.indexOf("//");
+        String[] words = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+        if (words[0].isEmpty()) return null;
+        switch (words[0]) {
+            case "push": return push(segmentOf(words, line), numberOf(words, 2, line));
+            case "pop": return pop(segmentOf(words, line), numberOf(words, 2, line));
+            case "label": return label(nameOf(words, line));
+            case "goto": return gotoLabel(nameOf(words, line));
+            case "if-goto": return ifGoto(nameOf(words, line));
+            case "call": return call(nameOf(words, line), numberOf(words, 2, line));
+            case "function": return function(nameOf(words, line), numberOf(words, 2, line));
+            case "return": return ret();
+            default: {
+                for (ArithmeticCommand command : ArithmeticCommand.values()) {
+                    if (command.getVmName().equals(words[0]) && command != ArithmeticCommand.MULTIPLY
+                            && command != ArithmeticCommand.DIVIDE) {
+                        return arithmetic(command);
+                    }
+                }
+                throw new IllegalArgumentException("Unknown VM command: " + line);
+            }
+        }
+    }
+
+    private static Segment segmentOf(String[] words, String line) {
+        for (Segment segment : Segment.values()) {
+            if (words.length > 1 && segment.getVmName().equals(words[1])) return segment;
+        }
+        throw new IllegalArgumentException("Unknown VM segment: " + line);
+    }
+
+    private static String nameOf(String[] words, String line) {
+        if (words.length < 2) throw new IllegalArgumentException("Missing name in VM command: " + line);
+        return words[1];
+    }
+
+    private static int numberOf(String[] words, int position, String line) {
+        try {
+            return Integer.parseInt(words[position]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Missing number in VM command: " + line);
+        }
+    }
+
+    public Op getOp() { return op; }
+    public Segment getSegment() { return segment; }
+    public ArithmeticCommand getCommand() { return command; }
+    /**
+     * @return label of label/goto/if-goto, or function name of call/function
+     */
+    public String getName() { return name; }
+    /**
+     * @return index of push/pop, arguments of call or locals of function
+     */
+    public int getNumber() { return number; }
+
+    public boolean is(Op op) { return this.op == op; }
+
+    public boolean isPush(Segment segment) { return op == Op.PUSH && this.segment == segment; }
+
+    public boolean isArithmetic(ArithmeticCommand command) { return op == Op.ARITHMETIC && this.command == command; }
+
+    public void writeTo(VMOutput output) {
+        switch (op) {
+            case PUSH: output.writePush(segment, number); break;
+            case POP: output.writePop(segment, number); break;
+            case ARITHMETIC: output.writeArithmetic(command); break;
+            case LABEL: output.writeLabel(name); break;
+            case GOTO: output.writeGoto(name); break;
+            case IF_GOTO: output.writeIf(name); break;
+            case CALL: output.writeCall(name, number); break;
+            case FUNCTION: output.writeFunction(name, number); break;
+            case RETURN: output.writeReturn(); break;
+            default: throw new IllegalStateException("Not implemented op: " + op);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof VMInstruction)) return false;
+        VMInstruction other = (VMInstruction) o;
+        return op == other.op && segment == other.segment && command == other.command && number == other.number
+                && (name == null ? other.name == null : name.equals(other.name));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = op.hashCode();
+        result = 31 * result + (segment != null ? segment.hashCode() : 0);
+        result = 31 * result + (command != null ? command.hashCode() : 0);
+        result = 31 * result + (name != null ? name.hashCode() : 0);
+        return 31 * result + number;
+    }
+
+    @Override
+    public String toString() {
+        switch (op) {
+            case PUSH: return "push " + segment.getVmName() + " " + number;
+            case POP: return "pop " + segment.getVmName() + " " + number;
+            case ARITHMETIC: return command.getVmName();
+            case LABEL: return "label " + name;
+            case GOTO: return "goto " + name;
+            case IF_GOTO: return "if-goto " + name;
+            case CALL: return "call " + name + " " + number;
+            case FUNCTION: return "function " + name + " " + number;
+            case RETURN: return "return";
+            default: throw new IllegalStateException("Not implemented op: " + op);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps VM code as instructions in memory, for passes which need the code of the whole program.
+ */
+public class VMInstructionBuffer implements VMOutput {
+    private final List<VMInstruction> instructions = new ArrayList<>();
+
+    public List<VMInstruction> getInstructions() { return instructions; }
+
+    @Override
+    public void writePush(Segment segment, int index) { instructions.add(VMInstruction.push(segment, index)); }
+
+    @Override
+    public void writePop(Segment segment, int index) { instructions.add(VMInstruction.pop(segment, index)); }
+
+    @Override
+    public void writeArithmetic(ArithmeticCommand command) { instructions.add(VMInstruction.arithmetic(command)); }
+
+    @Override
+    public void writeLabel(String label) { instructions.add(VMInstruction.label(label)); }
+
+    @Override
+    public void writeGoto(String label) { instructions.add(VMInstruction.gotoLabel(label)); }
+
+    @Override
+    public void writeIf(String label) { instructions.add(VMInstruction.ifGoto(label)); }
+
+    @Override
+    public void writeCall(String name, int nArgs) { instructions.add(VMInstruction.call(name, nArgs)); }
+
+    @Override
+    public void writeFunction(String name, int nLocals) { instructions.add(VMInstruction.function(name, nLocals)); }
+
+    @Override
+    public void writeReturn() { instructions.add(VMInstruction.ret()); }
+}
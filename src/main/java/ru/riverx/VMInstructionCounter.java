@@ -0,0 +1,69 @@
+package ru.riverx;
+
+/**
+ * Passes VM commands on to the next output and counts them.
+ */
+public class VMInstructionCounter implements VMOutput {
+    private final VMOutput next;
+    private int count;
+
+    public VMInstructionCounter(VMOutput next) {
+        this.next = next;
+    }
+
+    public int getCount() { return count; }
+
+    @Override
+    public void writePush(Segment segment, int index) {
+        count++;
+        next.writePush(segment, index);
+    }
+
+    @Override
+    public void writePop(Segment segment, int index) {
+        count++;
+        next.writePop(segment, index);
+    }
+
+    @Override
+    public void writeArithmetic(ArithmeticCommand command) {
+        count++;
+        next.writeArithmetic(command);
+    }
+
+    @Override
+    public void writeLabel(String label) {
+        count++;
+        next.writeLabel(label);
+    }
+
+    @Override
+    public void writeGoto(String label) {
+        count++;
+        next.writeGoto(label);
+    }
+
+    @Override
+    public void writeIf(String label) {
+        count++;
+        next.writeIf(label);
+    }
+
+    @Override
+    public void writeCall(String name, int nArgs) {
+        count++;
+        next.writeCall(name, nArgs);
+    }
+
+    @Override
+    public void writeFunction(String name, int nLocals) {
+        count++;
+        next.writeFunction(name, nLocals);
+    }
+
+    @Override
+    public void writeReturn() {
+        count++;
+        next.writeReturn();
+    }
+}
@@ -0,0 +1,25 @@
+package ru.riverx;
+
+/**
+ * Destination of VM commands. {@link VMWriter} maps symbol kinds to segments and lowers
+ * multiply/divide to OS calls, so an output only sees plain VM commands.
+ */
+public interface VMOutput {
+    void writePush(Segment segment, int index);
+
+    void writePop(Segment segment, int index);
+
+    void writeArithmetic(ArithmeticCommand command);
+
+    void writeLabel(String label);
+
+    void writeGoto(String label);
+
+    void writeIf(String label);
+
+    void writeCall(String name, int nArgs);
+
+    void writeFunction(String name, int nLocals);
+
+    void writeReturn();
+}
@@ -1,23 +1,21 @@
 package ru.riverx;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
-
+/**
+ * Translates the compiler's view (symbol kinds, Jack operators) into plain VM commands for a {@link VMOutput}.
+ */
 public class VMWriter {
-    List<String> vmCode;
-    public VMWriter() {
-        this.vmCode = new ArrayList<>();
+    private final VMOutput output;
+
+    public VMWriter(VMOutput output) {
+        this.output = output;
     }
 
     public void writePush(SymbolKind kind, int index) {
-        Segment segment = getSegmentFromKind(kind);
-        vmCode.add("push " + segment.name().toLowerCase() + " " + index);
+        output.writePush(getSegmentFromKind(kind), index);
     }
 
     public void writePop(SymbolKind kind, int index) {
-        Segment segment = getSegmentFromKind(kind);
-        vmCode.add("pop " + segment.name().toLowerCase() + " " + index);
+        output.writePop(getSegmentFromKind(kind), index);
     }
 
     private Segment getSegmentFromKind(SymbolKind kind) {
@@ -36,46 +34,42 @@ public class VMWriter {
 
     public void writeArithmetic(ArithmeticCommand command) {
         switch (command) {
-            case ADD: vmCode.add("add"); break;
-            case SUB: vmCode.add("sub"); break;
-            case NEG: vmCode.add("neg"); break;
-            case EQ: vmCode.add("eq"); break;
-            case GT: vmCode.add("gt"); break;
-            case LT: vmCode.add("lt"); break;
-            case AND: vmCode.add("and"); break;
-            case OR: vmCode.add("or"); break;
-            case NOT: vmCode.add("not"); break;
+            case ADD:
+            case SUB:
+            case NEG:
+            case EQ:
+            case GT:
+            case LT:
+            case AND:
+            case OR:
+            case NOT: output.writeArithmetic(command); break;
             case MULTIPLY: writeCall("Math.multiply", 2); break;
             case DIVIDE: writeCall("Math.divide", 2); break;
             default: throw new IllegalArgumentException("Not implemented cmd: " + command);
         }
     }
 
-    public void writeConstant(String constant) {
-        vmCode.add("push constant " + constant);
-    }
-
     public void writeLabel(String label) {
-        vmCode.add("label " + label);
+        output.writeLabel(label);
     }
 
     public void writeGoto(String label) {
-        vmCode.add("goto " + label);
+        output.writeGoto(label);
     }
 
     public void writeIf(String label) {
-        vmCode.add("if-goto " + label);
+        output.writeIf(label);
     }
 
     public void writeCall(String name, int nArgs) {
-        vmCode.add("call " + name + " " + nArgs);
+        output.writeCall(name, nArgs);
     }
 
     public void writeFunction(String name, int nLocals) {
-        vmCode.add("function " + name + " " + nLocals);
+        output.writeFunction(name, nLocals);
     }
 
     public void writeReturn() {
-        vmCode.add("return");
+        output.writeReturn();
     }
 }
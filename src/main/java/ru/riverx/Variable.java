@@ -3,26 +3,12 @@ package ru.riverx;
 public class Variable {
     private final String type;
     private final SymbolKind kind;
-    private int index;
-    public static int staticCount = 0;
-    public static int fieldCount = 0;
-    public static int argumentCount = 0;
-    public static int localCount = 0;
+    private final int index;
 
-    public Variable(String type, SymbolKind kind) {
+    public Variable(String type, SymbolKind kind, int index) {
         this.type = type;
         this.kind = kind;
-        increaseKindCount();
-    }
-
-    private void increaseKindCount() {
-        switch (this.kind) {
-            case STATIC: index = staticCount++; break;
-            case FIELD: index = fieldCount++; break;
-            case ARG: index = argumentCount++; break;
-            case VAR: index = localCount++; break;
-            default: break;
-        }
+        this.index = index;
     }
 
     public String getType() {
@@ -0,0 +1,218 @@
+package ru.riverx;
+
+import java.util.List;
+
+/**
+ * Walks an {@link Ast.ClassDec} and replays it as the parse tree of the course: elements around the
+ * grammar rules and every token of the source in between.
+ */
+public class XmlPrinter {
+    private final ParseTreeListener listener;
+
+    public XmlPrinter(ParseTreeListener listener) {
+        this.listener = listener;
+    }
+
+    public void print(Ast.ClassDec classDec) {
+        listener.enterElement("class");
+        keyword("class");
+        identifier(classDec.name);
+        symbol('{');
+        for (Ast.VarDec varDec : classDec.classVarDecs) {
+            printVarDec("classVarDec", varDec);
+        }
+        for (Ast.SubroutineDec subroutine : classDec.subroutines) {
+            printSubroutineDec(subroutine);
+        }
+        symbol('}');
+        listener.exitElement("class");
+    }
+
+    private void printVarDec(String element, Ast.VarDec varDec) {
+        listener.enterElement(element);
+        keyword(varDec.kind);
+        type(varDec.type);
+        for (int i = 0; i < varDec.names.size(); i++) {
+            if (i > 0) symbol(',');
+            identifier(varDec.names.get(i));
+        }
+        symbol(';');
+        listener.exitElement(element);
+    }
+
+    private void printSubroutineDec(Ast.SubroutineDec subroutine) {
+        listener.enterElement("subroutineDec");
+        keyword(subroutine.kind);
+        type(subroutine.returnType);
+        identifier(subroutine.name);
+        symbol('(');
+        listener.enterElement("parameterList");
+        for (int i = 0; i < subroutine.parameters.size(); i++) {
+            if (i > 0) symbol(',');
+            type(subroutine.parameters.get(i).type);
+            identifier(subroutine.parameters.get(i).name);
+        }
+        listener.exitElement("parameterList");
+        symbol(')');
+        listener.enterElement("subroutineBody");
+        symbol('{');
+        for (Ast.VarDec varDec : subroutine.varDecs) {
+            printVarDec("varDec", varDec);
+        }
+        printStatements(subroutine.statements);
+        symbol('}');
+        listener.exitElement("subroutineBody");
+        listener.exitElement("subroutineDec");
+    }
+
+    private void printStatements(List<Ast.Statement> statements) {
+        listener.enterElement("statements");
+        for (Ast.Statement statement : statements) {
+            printStatement(statement);
+        }
+        listener.exitElement("statements");
+    }
+
+    private void printBlock(List<Ast.Statement> statements) {
+        symbol('{');
+        printStatements(statements);
+        symbol('}');
+    }
+
+    private void printStatement(Ast.Statement statement) {
+        if (statement instanceof Ast.LetStatement) {
+            Ast.LetStatement let = (Ast.LetStatement) statement;
+            listener.enterElement("letStatement");
+            keyword("let");
+            identifier(let.name);
+            if (let.index != null) {
+                symbol('[');
+                printExpression(let.index);
+                symbol(']');
+            }
+            symbol('=');
+            printExpression(let.value);
+            symbol(';');
+            listener.exitElement("letStatement");
+        } else if (statement instanceof Ast.IfStatement) {
+            Ast.IfStatement ifStatement = (Ast.IfStatement) statement;
+            listener.enterElement("ifStatement");
+            keyword("if");
+            symbol('(');
+            printExpression(ifStatement.condition);
+            symbol(')');
+            printBlock(ifStatement.thenStatements);
+            if (ifStatement.elseStatements != null) {
+                keyword("else");
+                printBlock(ifStatement.elseStatements);
+            }
+            listener.exitElement("ifStatement");
+        } else if (statement instanceof Ast.WhileStatement) {
+            Ast.WhileStatement whileStatement = (Ast.WhileStatement) statement;
+            listener.enterElement("whileStatement");
+            keyword("while");
+            symbol('(');
+            printExpression(whileStatement.condition);
+            symbol(')');
+            printBlock(whileStatement.statements);
+            listener.exitElement("whileStatement");
+        } else if (statement instanceof Ast.DoStatement) {
+            listener.enterElement("doStatement");
+            keyword("do");
+            printSubroutineCall(((Ast.DoStatement) statement).call); // Not wrapped in a term.
+            symbol(';');
+            listener.exitElement("doStatement");
+        } else if (statement instanceof Ast.ReturnStatement) {
+            Ast.ReturnStatement returnStatement = (Ast.ReturnStatement) statement;
+            listener.enterElement("returnStatement");
+            keyword("return");
+            if (returnStatement.value != null) {
+                printExpression(returnStatement.value);
+            }
+            symbol(';');
+            listener.exitElement("returnStatement");
+        } else {
+            throw new IllegalArgumentException("Not implemented statement: " + statement);
+        }
+    }
+
+    /**
+     * The operands of an expression are flat in the tree: term op term op term.
+     */
+    private void printExpression(Ast.Expression expression) {
+        listener.enterElement("expression");
+        while (expression instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression binary = (Ast.BinaryExpression) expression;
+            printTerm(binary.left);
+            symbol(binary.op);
+            expression = binary.right;
+        }
+        printTerm(expression);
+        listener.exitElement("expression");
+    }
+
+    private void printTerm(Ast.Expression term) {
+        listener.enterElement("term");
+        if (term instanceof Ast.IntegerConstant) {
+            listener.visitToken(new Token(String.valueOf(((Ast.IntegerConstant) term).value), TokenType.integerConstant));
+        } else if (term instanceof Ast.StringConstant) {
+            listener.visitToken(new Token(((Ast.StringConstant) term).value, TokenType.stringConstant));
+        } else if (term instanceof Ast.KeywordConstant) {
+            keyword(((Ast.KeywordConstant) term).keyword);
+        } else if (term instanceof Ast.VarRef) {
+            identifier(((Ast.VarRef) term).name);
+        } else if (term instanceof Ast.ArrayRef) {
+            Ast.ArrayRef arrayRef = (Ast.ArrayRef) term;
+            identifier(arrayRef.name);
+            symbol('[');
+            printExpression(arrayRef.index);
+            symbol(']');
+        } else if (term instanceof Ast.SubroutineCall) {
+            printSubroutineCall((Ast.SubroutineCall) term);
+        } else if (term instanceof Ast.ParenthesizedExpression) {
+            symbol('(');
+            printExpression(((Ast.ParenthesizedExpression) term).expression);
+            symbol(')');
+        } else if (term instanceof Ast.UnaryExpression) {
+            Ast.UnaryExpression unary = (Ast.UnaryExpression) term;
+            symbol(unary.op);
+            printTerm(unary.term);
+        } else {
+            throw new IllegalArgumentException("Not a term: " + term);
+        }
+        listener.exitElement("term");
+    }
+
+    private void printSubroutineCall(Ast.SubroutineCall call) {
+        if (call.target != null) {
+            identifier(call.target);
+            symbol('.');
+        }
+        identifier(call.name);
+        symbol('(');
+        listener.enterElement("expressionList");
+        for (int i = 0; i < call.arguments.size(); i++) {
+            if (i > 0) symbol(',');
+            printExpression(call.arguments.get(i));
+        }
+        listener.exitElement("expressionList");
+        symbol(')');
+    }
+
+    private void type(String type) {
+        Token keyword = Token.keyword(type);
+        listener.visitToken(keyword != null ? keyword : new Token(type, TokenType.identifier));
+    }
+
+    private void keyword(String keyword) {
+        listener.visitToken(Token.keyword(keyword));
+    }
+
+    private void identifier(String name) {
+        listener.visitToken(new Token(name, TokenType.identifier));
+    }
+
+    private void symbol(char symbol) {
+        listener.visitToken(Token.symbol(symbol));
+    }
+}
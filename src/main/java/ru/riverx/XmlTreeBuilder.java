@@ -0,0 +1,32 @@
+package ru.riverx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the xml parse tree, one element or token per line.
+ */
+public class XmlTreeBuilder implements ParseTreeListener {
+    private final List<String> lines;
+
+    public XmlTreeBuilder() {
+        this.lines = new ArrayList<>();
+    }
+
+    @Override
+    public void enterElement(String name) {
+        lines.add("<" + name + ">");
+    }
+
+    @Override
+    public void exitElement(String name) {
+        lines.add("</" + name + ">");
+    }
+
+    @Override
+    public void visitToken(Token token) {
+        lines.add(token.toXmlString());
+    }
+
+    public List<String> getLines() { return lines; }
+}
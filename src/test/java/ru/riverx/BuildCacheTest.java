@@ -0,0 +1,79 @@
+package ru.riverx;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BuildCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void write(String name, String source) throws IOException {
+        Files.write(folder.getRoot().toPath().resolve(name), source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<String> vm(String name) throws IOException {
+        return Files.readAllLines(folder.getRoot().toPath().resolve(name), StandardCharsets.UTF_8);
+    }
+
+    private void build(String... options) {
+        String[] args = new String[options.length + 1];
+        System.arraycopy(options, 0, args, 0, options.length);
+        args[options.length] = folder.getRoot().getPath();
+        JackAnalyzer.main(args);
+    }
+
+    /**
+     * Whether &amp; becomes jumps depends on the return types of B, so Main is compiled again when they change.
+     */
+    @Test
+    public void changedReturnTypeRecompilesCaller() throws IOException {
+        write("Main.jack", "class Main { function void main() {"
+                + " if (B.f() & B.g()) { do Output.printInt(1); } return; } }");
+        write("B.jack", "class B { function boolean f() { return false; } function boolean g() { return true; } }");
+        build("--cache", "--short-circuit", "--emit", "vm");
+        assertFalse(vm("Main.vm").contains("and"));
+        write("B.jack", "class B { function int f() { return 0; }"
+                + " function int g() { do Output.printInt(7); return 0; } }");
+        build("--cache", "--short-circuit", "--emit", "vm");
+        assertTrue(vm("Main.vm").contains("and"));
+    }
+
+    /**
+     * Main is unchanged and hits the cache, but the call in it is checked against the new declaration of B.f.
+     */
+    @Test
+    public void changedParameterCountRechecksCaller() throws IOException {
+        write("Main.jack", "class Main { function void main() { do B.f(); return; } }");
+        write("B.jack", "class B { function void f() { return; } }");
+        build("--cache");
+        write("B.jack", "class B { function void f(int a) { return; } }");
+        try {
+            build("--cache");
+            fail("The call of B.f without arguments was not reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("B.f expects 1 argument(s), given 0"));
+        }
+    }
+
+    @Test
+    public void keepsIndexEntriesOfSources() throws IOException {
+        write("Main.jack", "class Main { function void main() { do B.f(); return; } }");
+        write("B.jack", "class B { function void f() { return; } }");
+        build("--cache", "--stream");
+        List<String> lines = vm(BuildCache.INDEX_NAME);
+        assertTrue(lines.toString(), lines.stream().anyMatch(line -> line.startsWith("class Main.jack ")
+                && line.endsWith(" Main|function:void:main:0|B")));
+        assertTrue(lines.toString(), lines.stream().anyMatch(line -> line.startsWith("class B.jack ")
+                && line.endsWith(" B|function:void:f:0|")));
+    }
+}
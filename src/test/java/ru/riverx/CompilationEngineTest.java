@@ -0,0 +1,39 @@
+package ru.riverx;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CompilationEngineTest {
+
+    private static Ast.ClassDec parse(String source) {
+        return new CompilationEngine(new JackTokenizer(source)).getTree();
+    }
+
+    @Test
+    public void parsesEmptyAndNestedLists() {
+        Ast.ClassDec tree = parse("class E { function void f() { do Output.println();"
+                + " do Math.max(Math.min(1, 2), 3); return; } }");
+        Ast.DoStatement first = (Ast.DoStatement) tree.subroutines.get(0).statements.get(0);
+        Ast.DoStatement second = (Ast.DoStatement) tree.subroutines.get(0).statements.get(1);
+        Ast.ReturnStatement last = (Ast.ReturnStatement) tree.subroutines.get(0).statements.get(2);
+        assertEquals(0, first.call.arguments.size());
+        assertEquals(2, second.call.arguments.size());
+        assertNull(last.value);
+    }
+
+    /**
+     * The list parser used to catch the failed argument and drop it, which gave wrong VM code.
+     */
+    @Test
+    public void rejectsIncompleteArgument() {
+        try {
+            parse("class E { function void f() { do E.g(1 + ); return; } }");
+            fail("do E.g(1 + ); was accepted");
+        } catch (RuntimeException e) {
+            assertEquals("Unexpected token: [symbol][)], expected: term", e.getMessage());
+        }
+    }
+}
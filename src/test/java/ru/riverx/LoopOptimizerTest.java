@@ -0,0 +1,35 @@
+package ru.riverx;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LoopOptimizerTest {
+
+    private static String optimize(String source) {
+        LoopOptimizer optimizer = new LoopOptimizer(false);
+        optimizer.optimize(new CompilationEngine(new JackTokenizer(source)).getTree());
+        return optimizer.getReport();
+    }
+
+    @Test
+    public void hoistsInvariantExpression() {
+        String report = optimize("class Main { function int f(int x, int y) { var int i, s;"
+                + " while (i < 10) { let s = s + (x * y); let i = i + 1; } return s; } }");
+        assertEquals("loop invariants: hoisted 1 expression(s) out of 1 loop(s): Main.f: (x * y)", report);
+    }
+
+    /**
+     * Main.inc() changes count on every test of the condition, so count + 1 stays in the loop.
+     * Hoisting it made the loop run forever at -O2 where -O0 prints 10.
+     */
+    @Test
+    public void callInConditionKeepsStaticsInLoop() {
+        String report = optimize("class Main { static int count;"
+                + " function boolean inc() { let count = count + 1; return true; }"
+                + " function void main() { let count = 0;"
+                + " while (((count + 1) < 10) & Main.inc()) { }"
+                + " do Output.printInt(count); return; } }");
+        assertEquals("loop invariants: hoisted 0 expression(s) out of 0 loop(s)", report);
+    }
+}
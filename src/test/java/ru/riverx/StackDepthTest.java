@@ -0,0 +1,85 @@
+package ru.riverx;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Statements, declarations, argument lists and operator chains are compiled in loops, so the stack only grows
+ * with nesting. These programs overflow a small stack if one of them is made recursive again.
+ */
+public class StackDepthTest {
+    private static final long STACK_SIZE = 512 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A method with 100k mixed statements: lets, ifs, whiles, calls and array writes.
+     */
+    static String longMethod(int statements) {
+        StringBuilder sb = new StringBuilder("class Main {\n    function void main() {\n        var int i, j;\n");
+        sb.append("        var Array a;\n        let a = Array.new(10);\n");
+        for (int i = 0; i < statements; i++) {
+            switch (i % 5) {
+                case 0: sb.append("        let i = i + ").append(i % 100).append(";\n"); break;
+                case 1: sb.append("        if (i > j) { let j = j - 1; } else { let j = j + 2; }\n"); break;
+                case 2: sb.append("        while (j < 3) { let j = j + 1; }\n"); break;
+                case 3: sb.append("        do Output.printInt(i * j);\n"); break;
+                default: sb.append("        let a[j] = a[i] + 1;\n");
+            }
+        }
+        return sb.append("        return;\n    }\n}\n").toString();
+    }
+
+    /**
+     * A 50k-term operator chain and a call with 50k arguments.
+     */
+    static String longExpressions(int terms) {
+        StringBuilder sb = new StringBuilder("class Main {\n    function int main() {\n        var int x;\n");
+        sb.append("        do Output.printInt(x");
+        for (int i = 1; i < terms; i++) sb.append(", x");
+        sb.append(");\n        return x");
+        for (int i = 1; i < terms; i++) sb.append(" + x");
+        return sb.append(";\n    }\n}\n").toString();
+    }
+
+    private void compile(String source, String... options) throws Exception {
+        Path main = folder.getRoot().toPath().resolve("Main.jack");
+        Files.write(main, source.getBytes(StandardCharsets.UTF_8));
+        String[] args = new String[options.length + 1];
+        System.arraycopy(options, 0, args, 0, options.length);
+        args[options.length] = folder.getRoot().getPath();
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> JackAnalyzer.main(args), "compile", STACK_SIZE);
+        thread.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+        thread.start();
+        thread.join();
+        assertNull(String.valueOf(failure[0]), failure[0]);
+        assertTrue(Files.size(folder.getRoot().toPath().resolve("Main.vm")) > 0);
+    }
+
+    @Test
+    public void compilesLongMethod() throws Exception {
+        String source = longMethod(100000);
+        compile(source, "--emit", "vm", "-O0");
+        compile(source, "--emit", "vm", "-O1");
+        compile(source, "--emit", "vm", "-O2", "--short-circuit");
+    }
+
+    @Test
+    public void compilesLongExpressions() throws Exception {
+        String source = longExpressions(50000);
+        compile(source, "--emit", "vm", "-O0");
+        compile(source, "--emit", "vm", "-O1");
+        compile(source, "--emit", "vm", "-O2", "--short-circuit");
+    }
+}
@@ -0,0 +1,54 @@
+package ru.riverx;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WatchTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void write(String name, String source) throws IOException {
+        Files.write(folder.getRoot().toPath().resolve(name), source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A.jack fails first; the files queued behind it on the pool are still compiled.
+     */
+    @Test
+    public void brokenFileDoesNotStopParallelBatch() throws Exception {
+        write("A.jack", "class A { function void f() { do ; } }");
+        String[] good = {"B", "C", "D", "E", "F", "G", "H"};
+        for (String name : good) {
+            write(name + ".jack", "class " + name + " { function int f() { return 1; } }");
+        }
+        Thread watch = new Thread(() -> JackAnalyzer.main(new String[] {
+                "--jobs", "2", "--emit", "vm", "--watch", folder.getRoot().getPath()}));
+        watch.setDaemon(true);
+        watch.start();
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            for (String name : good) {
+                Path vm = folder.getRoot().toPath().resolve(name + ".vm");
+                while (!Files.exists(vm) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+                assertTrue(name + ".vm was not written", Files.exists(vm));
+            }
+            assertFalse(Files.exists(folder.getRoot().toPath().resolve("A.vm")));
+        } finally {
+            watch.interrupt();
+            watch.join(TIMEOUT_MILLIS);
+        }
+    }
+}